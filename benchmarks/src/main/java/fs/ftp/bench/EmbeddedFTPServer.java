@@ -0,0 +1,100 @@
+package fs.ftp.bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import org.apache.ftpserver.ConnectionConfigFactory;
+import org.apache.ftpserver.FtpServer;
+import org.apache.ftpserver.FtpServerFactory;
+import org.apache.ftpserver.ftplet.DefaultFtplet;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.ftplet.FtpSession;
+import org.apache.ftpserver.ftplet.FtpletResult;
+import org.apache.ftpserver.ftplet.UserManager;
+import org.apache.ftpserver.listener.ListenerFactory;
+import org.apache.ftpserver.usermanager.PropertiesUserManagerFactory;
+import org.apache.ftpserver.usermanager.impl.BaseUser;
+import org.apache.ftpserver.usermanager.impl.ConcurrentLoginPermission;
+import org.apache.ftpserver.usermanager.impl.WritePermission;
+
+
+/**
+ * In-process Apache FtpServer on an ephemeral localhost port, serving a single
+ * writable user whose home is the given directory.
+ *
+ * <p>A round trip time can be injected: every command waits for it before being
+ * handled, which is what a WAN link adds to each command/reply exchange. Data
+ * connections are not slowed down.</p>
+ */
+final class EmbeddedFTPServer implements AutoCloseable {
+    static final String HOST = "127.0.0.1";
+    static final String USER_NAME = "bench";
+    static final String USER_PASSWORD = "bench";
+    private static final int MAX_SESSIONS = 64;
+
+    private final FtpServer server;
+    private final int port;
+
+
+    /**
+     * @param rttMillis Delay of every command, 0 for none.
+     */
+    EmbeddedFTPServer(final Path homeDir, final int rttMillis) throws IOException {
+        FtpServerFactory serverFactory = new FtpServerFactory();
+        ListenerFactory listenerFactory = new ListenerFactory();
+        listenerFactory.setServerAddress(HOST);
+        listenerFactory.setPort(0); /* any free port */
+        serverFactory.addListener("default", listenerFactory.createListener());
+
+        ConnectionConfigFactory connectionConfigFactory = new ConnectionConfigFactory();
+        connectionConfigFactory.setMaxLogins(MAX_SESSIONS);
+        connectionConfigFactory.setMaxThreads(MAX_SESSIONS); /* delayed commands of other sessions are not held up */
+        serverFactory.setConnectionConfig(connectionConfigFactory.createConnectionConfig());
+
+        BaseUser user = new BaseUser();
+        user.setName(USER_NAME);
+        user.setPassword(USER_PASSWORD);
+        user.setHomeDirectory(homeDir.toString());
+        user.setAuthorities(Arrays.asList(new WritePermission(), new ConcurrentLoginPermission(MAX_SESSIONS, MAX_SESSIONS)));
+        UserManager userManager = new PropertiesUserManagerFactory().createUserManager();
+        try {
+            userManager.save(user);
+        } catch(FtpException e) {
+            throw new IOException("Cannot create the benchmark user", e);
+        }
+        serverFactory.setUserManager(userManager);
+
+        if(rttMillis > 0)
+            serverFactory.setFtplets(new HashMap<>(Collections.singletonMap("rtt", new DefaultFtplet() {
+                @Override
+                public FtpletResult beforeCommand(final FtpSession session, final FtpRequest request) throws FtpException, IOException {
+                    try {
+                        Thread.sleep(rttMillis);
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return super.beforeCommand(session, request);
+                }
+            })));
+
+        server = serverFactory.createServer();
+        try {
+            server.start();
+        } catch(FtpException e) {
+            throw new IOException("Cannot start the embedded FTP server", e);
+        }
+        port = serverFactory.getListener("default").getPort();
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+    }
+}
@@ -0,0 +1,67 @@
+package fs.ftp.bench;
+
+import fs.ftp.handler.FTPHandler;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+
+/**
+ * A connected handler and the embedded server it talks to, with a synthetic
+ * source tree on both sides.
+ *
+ * <p>Server side, the source tree is <code>/src</code> and the scratch
+ * directories of the benchmarks changing the tree are next to it; they are
+ * prepared straight on the server's disk, so the handler's listing cache is
+ * flushed afterwards.</p>
+ */
+final class FTPFixture implements AutoCloseable {
+    static final String REMOTE_SRC_PATH = "/src";
+
+    final Path serverRoot;  /* home of the FTP user */
+    final Path localRoot;   /* local side of get and put */
+    final Path localSrc;    /* same tree as REMOTE_SRC_PATH */
+    final EmbeddedFTPServer server;
+    final FTPHandler handler;
+
+
+    /**
+     * @param shape See {@link SyntheticTree}.
+     * @param maxSessions Pooled sessions of the handler.
+     */
+    FTPFixture(final String shape, final int fileSize, final int rttMillis, final int maxSessions) throws IOException {
+        serverRoot = Files.createTempDirectory("ftp-bench-server");
+        localRoot = Files.createTempDirectory("ftp-bench-local");
+        localSrc = localRoot.resolve("src");
+        SyntheticTree.create(serverRoot.resolve("src"), shape, fileSize);
+        SyntheticTree.create(localSrc, shape, fileSize);
+
+        server = new EmbeddedFTPServer(serverRoot, rttMillis);
+        handler = new FTPHandler();
+        handler.setPort(server.getPort());
+        handler.setMaxSessions(maxSessions);
+        handler.connect(EmbeddedFTPServer.HOST, EmbeddedFTPServer.USER_NAME, EmbeddedFTPServer.USER_PASSWORD);
+    }
+
+    /** Empties the server side directory of the path, creating it if needed. */
+    void resetRemoteDirectory(final String path) {
+        SyntheticTree.reset(serverRoot.resolve(path.substring(1)));
+        handler.flushListingCache();
+    }
+
+    /** Copies the source tree to the path on the server side. */
+    void copyRemoteSource(final String path) throws IOException {
+        Path dir = serverRoot.resolve(path.substring(1));
+        SyntheticTree.delete(dir);
+        SyntheticTree.copy(serverRoot.resolve("src"), dir);
+        handler.flushListingCache();
+    }
+
+    @Override
+    public void close() throws IOException {
+        handler.close();
+        server.close();
+        SyntheticTree.delete(serverRoot);
+        SyntheticTree.delete(localRoot);
+    }
+}
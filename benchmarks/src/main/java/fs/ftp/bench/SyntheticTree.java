@@ -0,0 +1,119 @@
+package fs.ftp.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+
+/**
+ * Local directory trees of a given shape, written straight to disk.
+ *
+ * <p>Shapes are given as:</p>
+ * <ul>
+ *   <li><code>flat:F</code> - F files in the root</li>
+ *   <li><code>deep:DxF</code> - a chain of D nested directories, F files in each</li>
+ *   <li><code>bushy:BxDxF</code> - B subdirectories per directory down to depth D, F files in each</li>
+ * </ul>
+ */
+final class SyntheticTree {
+    private SyntheticTree() {
+    }
+
+    /**
+     * Creates the tree under the root, which is created as well.
+     * @param fileSize Size in bytes of every file.
+     */
+    static void create(final Path root, final String shape, final int fileSize) throws IOException {
+        byte[] content = new byte[fileSize];
+        new Random(fileSize).nextBytes(content);
+
+        int idx = shape.indexOf(':');
+        String[] dimensions = idx == -1 ? new String[0] : shape.substring(idx+1).split("x");
+        switch(idx == -1 ? shape : shape.substring(0, idx)) {
+            case "flat":
+                checkDimensions(shape, dimensions, 1);
+                createBushy(root, 0, 0, Integer.parseInt(dimensions[0]), content);
+                break;
+
+            case "deep":
+                checkDimensions(shape, dimensions, 2);
+                createBushy(root, 1, Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]), content);
+                break;
+
+            case "bushy":
+                checkDimensions(shape, dimensions, 3);
+                createBushy(root, Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]), Integer.parseInt(dimensions[2]), content);
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown tree shape: " + shape);
+        }
+    }
+
+    private static void checkDimensions(final String shape, final String[] dimensions, final int count) {
+        if(dimensions.length != count)
+            throw new IllegalArgumentException("Tree shape needs " + count + " dimension(s): " + shape);
+    }
+
+    private static void createBushy(final Path dir, final int branches, final int depth, final int files, final byte[] content) throws IOException {
+        Files.createDirectories(dir);
+        for(int i=0; i<files; i++)
+            Files.write(dir.resolve(String.format("file%05d.dat", i)), content);
+        if(depth > 0)
+            for(int i=0; i<branches; i++)
+                createBushy(dir.resolve(String.format("dir%03d", i)), branches, depth-1, files, content);
+    }
+
+    static void copy(final Path srcRoot, final Path dstRoot) throws IOException {
+        Files.walkFileTree(srcRoot, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(dstRoot.resolve(srcRoot.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.copy(file, dstRoot.resolve(srcRoot.relativize(file)), StandardCopyOption.REPLACE_EXISTING);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /** Deletes the root and everything under it, if present. */
+    static void delete(final Path root) throws IOException {
+        if(!Files.exists(root))
+            return;
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException e) throws IOException {
+                if(e != null)
+                    throw e;
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /** Empties the directory, creating it if needed. */
+    static void reset(final Path dir) {
+        try {
+            delete(dir);
+            Files.createDirectories(dir);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package fs.ftp.bench;
+
+import fs.ftp.handler.FTPHandler;
+import fs.ftp.handler.OperationResult;
+import fs.ftp.handler.TransferOptions;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Recursive get, put, cp and rm of the whole source tree. Before every
+ * operation, its own destination is emptied, or the tree rm deletes recreated,
+ * through the state the benchmark takes.
+ * The parallelism applies to get and put; rm uses as many pooled sessions,
+ * cp copies one file at a time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+    private static final String REMOTE_PUT_PATH = "/put";
+    private static final String REMOTE_CP_PATH = "/cp";
+    private static final String REMOTE_DELETE_PATH = "/rm";
+
+    @Param({"flat:200", "deep:16x4", "bushy:3x3x4"})
+    public String shape;
+
+    @Param({"16384"})
+    public int fileSize;
+
+    @Param({"0", "20"})
+    public int rttMillis;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private FTPFixture fixture;
+    private FTPHandler handler;
+    private File localGetDir;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        fixture = new FTPFixture(shape, fileSize, rttMillis, Math.max(parallelism, FTPHandler.DEFAULT_MAX_SESSIONS));
+        handler = fixture.handler;
+        localGetDir = fixture.localRoot.resolve("get").toFile();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
+
+    /* Empties the local destination of get before every operation */
+    @State(Scope.Benchmark)
+    public static class GetDestination {
+        @Setup(Level.Invocation)
+        public void reset(final TransferBenchmark benchmark) throws IOException {
+            SyntheticTree.reset(benchmark.localGetDir.toPath());
+        }
+    }
+
+    /* Empties the remote destination of put before every operation */
+    @State(Scope.Benchmark)
+    public static class PutDestination {
+        @Setup(Level.Invocation)
+        public void reset(final TransferBenchmark benchmark) throws IOException {
+            benchmark.fixture.resetRemoteDirectory(REMOTE_PUT_PATH);
+        }
+    }
+
+    /* Empties the remote destination of cp before every operation */
+    @State(Scope.Benchmark)
+    public static class CopyDestination {
+        @Setup(Level.Invocation)
+        public void reset(final TransferBenchmark benchmark) throws IOException {
+            benchmark.fixture.resetRemoteDirectory(REMOTE_CP_PATH);
+        }
+    }
+
+    /* Recreates the tree rm deletes before every operation */
+    @State(Scope.Benchmark)
+    public static class DeleteSource {
+        @Setup(Level.Invocation)
+        public void reset(final TransferBenchmark benchmark) throws IOException {
+            benchmark.fixture.copyRemoteSource(REMOTE_DELETE_PATH);
+        }
+    }
+
+    @Benchmark
+    public OperationResult get(final GetDestination destination) throws IOException {
+        return handler.get(Collections.singletonList(FTPFixture.REMOTE_SRC_PATH), localGetDir.getPath(), getOptions(), new OperationResult());
+    }
+
+    @Benchmark
+    public OperationResult put(final PutDestination destination) throws IOException {
+        return handler.put(Collections.singletonList(fixture.localSrc.toString()), REMOTE_PUT_PATH, getOptions(), new OperationResult());
+    }
+
+    @Benchmark
+    public OperationResult cp(final CopyDestination destination) throws IOException {
+        return handler.copy(Collections.singletonList(FTPFixture.REMOTE_SRC_PATH), REMOTE_CP_PATH);
+    }
+
+    @Benchmark
+    public OperationResult delete(final DeleteSource source) throws IOException {
+        return handler.delete(Collections.singletonList(REMOTE_DELETE_PATH));
+    }
+
+    private TransferOptions getOptions() {
+        TransferOptions options = new TransferOptions();
+        options.setParallelism(parallelism);
+        return options;
+    }
+}
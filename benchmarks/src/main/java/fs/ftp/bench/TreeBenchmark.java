@@ -0,0 +1,72 @@
+package fs.ftp.bench;
+
+import fs.ftp.handler.FTPHandler;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.net.ftp.FTPFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Read-only walks of the remote source tree: a single listing, tree and count.
+ * The listing cache is flushed before every operation, so every listing goes
+ * to the server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeBenchmark {
+    @Param({"flat:1000", "deep:32x4", "bushy:4x4x4"})
+    public String shape;
+
+    @Param({"0", "20"})
+    public int rttMillis;
+
+    private FTPFixture fixture;
+    private FTPHandler handler;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        fixture = new FTPFixture(shape, 1024, rttMillis, FTPHandler.DEFAULT_MAX_SESSIONS);
+        handler = fixture.handler;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
+
+    @Benchmark
+    public FTPFile[] getPathListing() throws IOException {
+        handler.flushListingCache();
+        return handler.getPathListing(FTPFixture.REMOTE_SRC_PATH, false, null);
+    }
+
+    @Benchmark
+    public long[] tree(final Blackhole blackhole) throws IOException {
+        handler.flushListingCache();
+        return handler.tree(FTPFixture.REMOTE_SRC_PATH, -1, false, (depth, path, file) -> blackhole.consume(file));
+    }
+
+    @Benchmark
+    public long[] count() throws IOException {
+        handler.flushListingCache();
+        return handler.count(FTPFixture.REMOTE_SRC_PATH);
+    }
+}
@@ -0,0 +1,84 @@
+package fs.ftp.handler;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.parser.MLSxEntryParser;
+import org.apache.commons.net.ftp.parser.UnixFTPEntryParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Parsing of a whole directory listing, without any network: the lean MLSD
+ * parser of the handler against the commons-net MLSx parser and the regex
+ * based UNIX LIST parser that <code>FTPClient.listFiles</code> picks for most
+ * servers. The LIST and MLSD lines describe the same entries.
+ *
+ * <p>In the handler's package, as the parser is package-private.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListingParserBenchmark {
+    private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+    @Param({"100000"})
+    public int entryCount;
+
+    private String[] listLines;
+    private String[] mlsdLines;
+    private final UnixFTPEntryParser listParser = new UnixFTPEntryParser();
+
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(entryCount);
+        listLines = new String[entryCount];
+        mlsdLines = new String[entryCount];
+        for(int i=0; i<entryCount; i++) {
+            boolean isDirectory = random.nextInt(10) == 0;
+            long size = isDirectory ? 4096 : random.nextInt(1 << 30);
+            int month = random.nextInt(12), day = 1 + random.nextInt(28), hour = random.nextInt(24), minute = random.nextInt(60);
+            String name = String.format(isDirectory ? "directory_%06d" : "file_%06d.dat", i);
+            listLines[i] = String.format("%s    1 owner    group    %12d %s %2d  %d %s",
+                                         isDirectory ? "drwxr-xr-x" : "-rw-r--r--", size, MONTHS[month], day, 2015 + random.nextInt(10), name);
+            mlsdLines[i] = String.format("type=%s;size=%d;modify=%d%02d%02d%02d%02d%02d;UNIX.mode=%s;UNIX.owner=owner;UNIX.group=group; %s",
+                                         isDirectory ? "dir" : "file", size, 2015 + random.nextInt(10), month+1, day, hour, minute, random.nextInt(60),
+                                         isDirectory ? "0755" : "0644", name);
+        }
+    }
+
+    @Benchmark
+    public void mlsdEntryParser(final Blackhole blackhole) {
+        for(String line: mlsdLines)
+            blackhole.consume(MLSDEntryParser.parseEntry(line));
+    }
+
+    @Benchmark
+    public void commonsNetMLSxParser(final Blackhole blackhole) {
+        for(String line: mlsdLines)
+            blackhole.consume(MLSxEntryParser.parseEntry(line));
+    }
+
+    @Benchmark
+    public void commonsNetUnixListParser(final Blackhole blackhole) {
+        for(String line: listLines) {
+            FTPFile file = listParser.parseFTPEntry(line);
+            blackhole.consume(file);
+        }
+    }
+}
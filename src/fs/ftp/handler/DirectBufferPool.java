@@ -0,0 +1,37 @@
+package fs.ftp.handler;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * Direct buffers of one size, reused by the file transfers so that none is
+ * allocated per file. There are never more buffers than transfers running at
+ * once, so the pool is not bounded.
+ */
+final class DirectBufferPool {
+    private final int bufferSize;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+
+    DirectBufferPool(final int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** @return A cleared buffer, to be released after use. */
+    ByteBuffer borrow() {
+        ByteBuffer buffer = buffers.poll();
+        if(buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        buffer.clear();
+        return buffer;
+    }
+
+    void release(final ByteBuffer buffer) {
+        buffers.offer(buffer);
+    }
+}
@@ -0,0 +1,221 @@
+package fs.ftp.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import org.apache.commons.net.ftp.FTPReply;
+
+
+/**
+ * A checksum command of the server with the matching local digest, to tell
+ * whether a remote file and a local one have the same content without
+ * transferring either.
+ *
+ * <p>The command is chosen from what FEAT advertises: HASH with its current
+ * algorithm (draft-bryan-ftpext-hash) if that one is known locally, else the
+ * older XSHA256, XSHA512, XSHA1, XMD5 and XCRC commands, in that order.</p>
+ */
+final class FTPChecksum {
+    /* Legacy commands, by preference, and their algorithms */
+    private static final String[][] LEGACY_COMMANDS = {
+        { "XSHA256", "SHA-256" },
+        { "XSHA512", "SHA-512" },
+        { "XSHA1",   "SHA-1" },
+        { "XMD5",    "MD5" },
+        { "XCRC",    "CRC32" }
+    };
+    private static final String HASH = "HASH";
+    private static final String CRC32 = "CRC32";
+
+    private final String command;
+    private final String algorithm; /* as named by HASH, also a MessageDigest name unless CRC32 */
+    private final int hexLength;
+
+
+    /** Local digest of the algorithm, fed a buffer at a time */
+    static final class Digest {
+        private final MessageDigest messageDigest; /* null for CRC32 */
+        private final CRC32 crc;
+
+        private Digest(final String algorithm) {
+            if(algorithm.equals(CRC32)) {
+                this.messageDigest = null;
+                this.crc = new CRC32();
+            } else {
+                this.messageDigest = newMessageDigest(algorithm);
+                this.crc = null;
+            }
+        }
+
+        /** Consumes the remaining bytes of the buffer. */
+        void update(final ByteBuffer buffer) {
+            if(crc != null)
+                crc.update(buffer);
+            else
+                messageDigest.update(buffer);
+        }
+
+        void update(final byte[] bytes, final int offset, final int length) {
+            if(crc != null)
+                crc.update(bytes, offset, length);
+            else
+                messageDigest.update(bytes, offset, length);
+        }
+
+        /** Reads the start of the file up to the length, through the buffer. */
+        void update(final FileChannel in, final long length, final ByteBuffer buffer) throws IOException {
+            long position = 0L;
+            while(position < length) {
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), length - position));
+                int count = in.read(buffer, position);
+                if(count == -1)
+                    throw new IOException("Local file shorter than " + length + " bytes");
+                position += count;
+                buffer.flip();
+                update(buffer);
+            }
+        }
+
+        /** @return The digest in lower case hex, the digest is reset. */
+        String getHex() {
+            if(crc != null) {
+                String hex = String.format("%08x", crc.getValue());
+                crc.reset();
+                return hex;
+            }
+            StringBuilder hex = new StringBuilder();
+            for(byte b: messageDigest.digest())
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        }
+    }
+
+    /** The content transferred is not the one the server has */
+    static final class MismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MismatchException(final String message) {
+            super(message);
+        }
+    }
+
+
+    private FTPChecksum(final String command, final String algorithm) {
+        this.command = command;
+        this.algorithm = algorithm;
+        this.hexLength = algorithm.equals(CRC32) ? 8 : newMessageDigest(algorithm).getDigestLength() * 2;
+    }
+
+    /**
+     * @return The checksum to use with the server, null if it advertises none known here.
+     */
+    static FTPChecksum select(final FTPServerFeatures features) {
+        if(features == null)
+            return null;
+        if(features.has(HASH)) {
+            String algorithm = getCurrentHashAlgorithm(features.getParameters(HASH));
+            if(algorithm != null && isKnown(algorithm))
+                return new FTPChecksum(HASH, algorithm);
+        }
+        for(String[] legacy: LEGACY_COMMANDS)
+            if(features.has(legacy[0]))
+                return new FTPChecksum(legacy[0], legacy[1]);
+        return null;
+    }
+
+    /* The one marked with a '*', e.g. SHA-256 of "SHA-1;SHA-256*;MD5", else the first one */
+    private static String getCurrentHashAlgorithm(final String parameters) {
+        if(parameters == null || parameters.trim().isEmpty())
+            return null;
+        String[] algorithms = parameters.trim().split(";");
+        for(String algorithm: algorithms)
+            if(algorithm.endsWith("*"))
+                return algorithm.substring(0, algorithm.length()-1).toUpperCase(Locale.ROOT);
+        return algorithms[0].toUpperCase(Locale.ROOT);
+    }
+
+    private static boolean isKnown(final String algorithm) {
+        if(algorithm.equals(CRC32))
+            return true;
+        try {
+            MessageDigest.getInstance(algorithm);
+            return true;
+        } catch(NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+    private static MessageDigest newMessageDigest(final String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch(NoSuchAlgorithmException e) { /* checked on selection */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** @return e.g. <code>SHA-256 (HASH)</code> */
+    @Override
+    public String toString() {
+        return algorithm + " (" + command + ")";
+    }
+
+    Digest newDigest() {
+        return new Digest(algorithm);
+    }
+
+    /**
+     * Asks the server for the checksum of the whole file. HASH replies with the
+     * algorithm, the range and the hash before the path; the legacy commands
+     * with the hash alone, or next to the path, so the first token looking like
+     * a hash of the algorithm is taken.
+     * @return The checksum in lower case hex.
+     * @throws IOException If refused or not understood.
+     */
+    String getRemote(final FTPSessionClient session, final String path) throws IOException {
+        int replyCode = session.sendCommand(command, path);
+        String reply = session.getReplyString().trim();
+        if(!FTPReply.isPositiveCompletion(replyCode))
+            throw new IOException("Cannot get the checksum of remote file: " + path + " (Reply: " + reply + ")");
+
+        String[] tokens = reply.substring(Math.min(4, reply.length())).trim().split("\\s+");
+        if(command.equals(HASH)) {
+            if(tokens.length >= 3 && tokens[0].equalsIgnoreCase(algorithm) && isHex(tokens[2]))
+                return tokens[2].toLowerCase(Locale.ROOT);
+        } else {
+            for(String token: tokens) /* CRCs may come without their leading zeros */
+                if(isHex(token) && (token.length() == hexLength || (algorithm.equals(CRC32) && token.length() < hexLength)))
+                    return String.format("%" + hexLength + "s", token.toLowerCase(Locale.ROOT)).replace(' ', '0');
+        }
+        throw new IOException("Unexpected checksum reply for remote file: " + path + " (Reply: " + reply + ")");
+    }
+
+    /** Reads the whole file through the buffer. */
+    String getLocal(final File file, final ByteBuffer buffer) throws IOException {
+        Digest digest = newDigest();
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer.clear();
+            while(in.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.getHex();
+    }
+
+    private static boolean isHex(final String token) {
+        if(token.isEmpty())
+            return false;
+        for(int i=0, len=token.length(); i<len; i++)
+            if(Character.digit(token.charAt(i), 16) == -1)
+                return false;
+        return true;
+    }
+}
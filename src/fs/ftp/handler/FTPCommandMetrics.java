@@ -0,0 +1,144 @@
+package fs.ftp.handler;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.commons.net.ProtocolCommandEvent;
+import org.apache.commons.net.ProtocolCommandListener;
+import org.apache.commons.net.ftp.FTPReply;
+
+
+/**
+ * Per-verb metrics of the commands sent by all the sessions of a handler.
+ *
+ * <p>Every session gets its own {@link ProtocolCommandListener}, which times a
+ * command from its sending to its final reply; preliminary 1xx replies are not
+ * final. The metrics of a verb are created, and published as an MBean, the
+ * first time the verb is sent.</p>
+ */
+final class FTPCommandMetrics {
+    private static final String DOMAIN = FTPCommandMetrics.class.getPackage().getName();
+    private static final AtomicInteger handlerCount = new AtomicInteger();
+
+    private final int handlerId = handlerCount.incrementAndGet();
+    private final ConcurrentMap<String,FTPVerbMetrics> verbMetrics = new ConcurrentHashMap<>();
+    private final List<ObjectName> registeredNames = new ArrayList<>();
+    private boolean isRegistrationEnabled = true; /* default value set, cleared once closed or failed */
+
+
+    /* Times the command in flight on one session, events arrive on the thread using the session */
+    private final class SessionListener implements ProtocolCommandListener {
+        private FTPVerbMetrics pendingMetrics = null; /* default value set */
+        private long sentTime;
+
+        @Override
+        public void protocolCommandSent(final ProtocolCommandEvent event) {
+            if(pendingMetrics != null) /* never answered, e.g. the connection dropped */
+                pendingMetrics.record(System.nanoTime() - sentTime, true);
+            pendingMetrics = getVerbMetrics(event.getCommand());
+            sentTime = System.nanoTime();
+        }
+
+        @Override
+        public void protocolReplyReceived(final ProtocolCommandEvent event) {
+            if(pendingMetrics == null || FTPReply.isPositivePreliminary(event.getReplyCode()))
+                return; /* greeting, or more to come */
+            boolean isGreeting = event.getReplyCode() == FTPReply.SERVICE_READY; /* reconnected, the command was lost */
+            pendingMetrics.record(System.nanoTime() - sentTime, isGreeting || event.getReplyCode() >= 400);
+            pendingMetrics = null;
+        }
+    }
+
+
+    /** @return A listener for a new session, not to be shared with any other. */
+    ProtocolCommandListener newSessionListener() {
+        return new SessionListener();
+    }
+
+    private FTPVerbMetrics getVerbMetrics(final String command) {
+        String verb = command.toUpperCase(Locale.ROOT);
+        FTPVerbMetrics metrics = verbMetrics.get(verb);
+        if(metrics != null)
+            return metrics;
+
+        metrics = new FTPVerbMetrics(verb);
+        FTPVerbMetrics existingMetrics = verbMetrics.putIfAbsent(verb, metrics);
+        if(existingMetrics != null)
+            return existingMetrics;
+        register(metrics);
+        return metrics;
+    }
+
+    /* Publishes on the platform MBean server, metrics still work without it */
+    private synchronized void register(final FTPVerbMetrics metrics) {
+        if(!isRegistrationEnabled)
+            return;
+        try {
+            ObjectName name = new ObjectName(String.format("%s:type=FTPCommandMetrics,handler=%d,verb=%s",
+                                                            DOMAIN, handlerId, getQuotedVerb(metrics.getVerb())));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            registeredNames.add(name);
+        } catch(JMException|RuntimeException e) {
+            isRegistrationEnabled = false;
+        }
+    }
+
+    /* Verbs are plain letters, anything else has to be quoted in a name */
+    private static String getQuotedVerb(final String verb) {
+        for(int i=0, len=verb.length(); i<len; i++)
+            if(!Character.isLetterOrDigit(verb.charAt(i)))
+                return ObjectName.quote(verb);
+        return verb;
+    }
+
+    /** Removes the MBeans, the metrics are not published anymore. */
+    synchronized void unregister() {
+        isRegistrationEnabled = false;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(ObjectName name: registeredNames) {
+            try {
+                server.unregisterMBean(name);
+            } catch(JMException e) { /* ignore, gone already */
+            }
+        }
+        registeredNames.clear();
+    }
+
+    void reset() {
+        for(FTPVerbMetrics metrics: verbMetrics.values())
+            metrics.reset();
+    }
+
+    /**
+     * @return A line per verb, the ones taking the most time in total first.
+     */
+    List<String> getReport() {
+        List<FTPVerbMetrics> metricsList = new ArrayList<>(verbMetrics.values());
+        metricsList.sort((m1, m2) -> Double.compare(m2.getTotalLatencyMillis(), m1.getTotalLatencyMillis()));
+        double totalMillis = 0.0;
+        for(FTPVerbMetrics metrics: metricsList)
+            totalMillis += metrics.getTotalLatencyMillis();
+
+        List<String> report = new ArrayList<>(metricsList.size() + 1);
+        report.add(String.format("%-6s %8s %7s %11s %6s %9s %9s %9s %9s",
+                                 "Verb", "Count", "Errors", "Total(ms)", "Time%", "Mean(ms)", "p50(ms)", "p99(ms)", "Max(ms)"));
+        for(FTPVerbMetrics metrics: metricsList) {
+            if(metrics.getCount() == 0)
+                continue; /* since the last reset */
+            report.add(String.format("%-6s %8d %7d %11.1f %5.1f%% %9.2f %9.2f %9.2f %9.2f",
+                                     metrics.getVerb(), metrics.getCount(), metrics.getErrorCount(),
+                                     metrics.getTotalLatencyMillis(),
+                                     totalMillis == 0.0 ? 0.0 : metrics.getTotalLatencyMillis() * 100 / totalMillis,
+                                     metrics.getMeanLatencyMillis(), metrics.getP50LatencyMillis(),
+                                     metrics.getP99LatencyMillis(), metrics.getMaxLatencyMillis()));
+        }
+        return report;
+    }
+}
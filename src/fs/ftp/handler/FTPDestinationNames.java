@@ -0,0 +1,82 @@
+package fs.ftp.handler;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.net.ftp.FTPFile;
+
+
+/**
+ * Names taken in the destination directories of a single copy or upload.
+ *
+ * <p>A directory is listed once, on the first name asked for in it; from then
+ * on every name handed out is added to its set, so picking a free
+ * <code>name (n).ext</code> is a hash lookup instead of a listing per attempt.
+ * Directories created by the operation start empty and are never listed.
+ * Names stay reserved even if the transfer using them fails, so two entries
+ * can never be given the same name within the operation.</p>
+ */
+final class FTPDestinationNames {
+    /* Lists a destination directory */
+    interface Lister {
+        FTPFile[] listFiles(String dirPath) throws IOException;
+    }
+
+    private final Lister lister;
+    private final Map<String,Set<String>> takenNames = new HashMap<>();
+
+
+    FTPDestinationNames(final Lister lister) {
+        this.lister = lister;
+    }
+
+    /**
+     * Reserves the name if free, else the first free numbered variant of it.
+     * @param dirPath Absolute path of the destination directory.
+     * @return Full path, including parent path and reserved file name.
+     */
+    synchronized String reserve(final String dirPath, final String fileName, final boolean isDirectory) throws IOException {
+        String key = toKey(dirPath);
+        Set<String> names = takenNames.get(key);
+        if(names == null) {
+            FTPFile[] files = lister.listFiles(key);
+            names = new HashSet<>(files.length * 4 / 3 + 16);
+            for(FTPFile file: files)
+                names.add(file.getName());
+            takenNames.put(key, names);
+        }
+
+        String name = fileName;
+        for(int renameAttempt=1; !names.add(name); renameAttempt++)
+            name = getNumberedName(fileName, isDirectory, renameAttempt);
+        return key.endsWith("/") ? key + name : key + "/" + name;
+    }
+
+    /** Records a directory just created by the operation, so nothing is taken in it yet. */
+    synchronized void addCreatedDirectory(final String dirPath) {
+        takenNames.put(toKey(dirPath), new HashSet<>());
+    }
+
+    /* "name (n)" for directories, "base (n).ext" for files */
+    private static String getNumberedName(final String fileName, final boolean isDirectory, final int number) {
+        StringBuilder name = new StringBuilder(fileName.length() + 5);
+        if(isDirectory) { /* No extension checking for directories */
+            name.append(fileName).append(" (").append(number).append(")");
+        } else { /* Extension checking for files */
+            int dotIdx = fileName.lastIndexOf('.');
+            if(dotIdx == -1)
+                dotIdx = fileName.length();
+            name.append(fileName, 0, dotIdx)
+                .append(" (").append(number).append(")")
+                .append(fileName, dotIdx, fileName.length());
+        }
+        return name.toString();
+    }
+
+    private static String toKey(final String dirPath) {
+        return Paths.get(dirPath).normalize().toString();
+    }
+}
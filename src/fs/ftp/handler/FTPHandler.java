@@ -1,727 +1,2397 @@
-package fs.ftp.handler;
-
-import fs.ftp.shell.FTPShell;
-
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Objects;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
-import org.apache.commons.net.ftp.FTP;
-import org.apache.commons.net.ftp.FTPClient;
-import org.apache.commons.net.ftp.FTPConnectionClosedException;
-import org.apache.commons.net.ftp.FTPFile;
-import org.apache.commons.net.ftp.FTPFileFilter;
-import org.apache.commons.net.ftp.FTPReply;
-
-
-public class FTPHandler implements AutoCloseable {
-    /* Path abbreviations */
-    public static final String ROOT_PATH = "/";
-    public static final String CURRENT_PATH_ABBREVIATION = ".";
-    public static final String PARENT_PATH_ABBREVIATION = "..";
-    
-    private static final FTPClient ftpClient = new FTPClient();
-    private static final int PORT = 21;    
-    public  static final String ANONYMOUS_USER_NAME = "anonymous";
-    public  static final String ANONYMOUS_USER_PASSWORD = "";
-    
-    private String hostName;
-    private String userName;
-    private String userPassword;
-    private String currentWorkingDirectory  = null;
-    private boolean isSessionAlive          = false;  /* default value set */
-    private File tempTransferDir            = null;
-    private final Map<String,FTPFile> succeededFTPFiles           = new LinkedHashMap<>();
-    private final Map<String,FTPFile> failedFTPFiles              = new LinkedHashMap<>();
-    private final List<Map<String,FTPFile>> verboseFTPFileList    = new ArrayList<>(2);
-    private final List<List<File>> verboseLocalFileList           = new ArrayList<>(2);
-    private final List<File> succeededLocalFiles                  = new ArrayList<>();
-    private final List<File> failedLocalFiles                     = new ArrayList<>();
-    private long dirCount=0L, fileCount=0L; /* default value set */
-    
-    
-    public FTPHandler() {
-        verboseFTPFileList.add(succeededFTPFiles);
-        verboseFTPFileList.add(failedFTPFiles);
-        
-        verboseLocalFileList.add(succeededLocalFiles);
-        verboseLocalFileList.add(failedLocalFiles);
-    }    
-    
-    public boolean isSessionAlive() {
-//        return ftpClient.isConnected();
-        return isSessionAlive;
-    }
-    
-    public String getHostName() {
-        return hostName;
-    }
-    
-    public String getUserName() {
-        return userName;
-    }
-    
-    public String getServerHelpString() throws IOException {
-        ensureConnectivity();
-        return ftpClient.listHelp();
-    }
-    
-    public List<String> getConnectionStatistics() throws IOException {
-        ensureConnectivity();
-        
-        List<String> info = new ArrayList<>();
-        info.add("Host name: " + hostName);
-        info.add("Passive host name: " + Objects.toString(ftpClient.getPassiveHost(), "N/A"));
-        info.add("Passive local address: " + Objects.toString(ftpClient.getPassiveLocalIPAddress(), "N/A"));
-        info.add("Passive port: " + ftpClient.getPassivePort());
-        info.add("Default port: " + ftpClient.getDefaultPort());
-        info.add("Local address: " + Objects.toString(ftpClient.getLocalAddress(), "N/A"));
-        info.add("Local port: " + ftpClient.getLocalPort());
-        info.add("Proxy: " + Objects.toString(ftpClient.getProxy(), "N/A"));
-        info.add("Remote address: " + Objects.toString(ftpClient.getRemoteAddress()));
-        info.add("Remote port: " + ftpClient.getRemotePort());
-        info.add("User name: " + userName);
-        info.add("Status: " + Objects.toString(ftpClient.getStatus(), "N/A"));
-        info.add("System type: " + Objects.toString(ftpClient.getSystemType(), "N/A"));
-        info.add("Control keep alive reply timeout: " + ftpClient.getControlKeepAliveReplyTimeout() + "ms");
-        info.add("Control keep alive timeout: " + ftpClient.getControlKeepAliveTimeout() + "ms");
-        switch(ftpClient.getDataConnectionMode()) {
-            case FTPClient.ACTIVE_LOCAL_DATA_CONNECTION_MODE:
-                info.add("Data connection mode: ACTIVE_LOCAL_DATA_CONNECTION_MODE");
-                break;
-            case FTPClient.ACTIVE_REMOTE_DATA_CONNECTION_MODE:
-                info.add("Data connection mode: ACTIVE_REMOTE_DATA_CONNECTION_MODE");
-                break;
-            case FTPClient.PASSIVE_LOCAL_DATA_CONNECTION_MODE:
-                info.add("Data connection mode: PASSIVE_LOCAL_DATA_CONNECTION_MODE");
-                break;
-            case FTPClient.PASSIVE_REMOTE_DATA_CONNECTION_MODE:
-                info.add("Data connection mode: PASSIVE_REMOTE_DATA_CONNECTION_MODE");
-                break;
-            default: 
-                info.add("Data connection mode: " + ftpClient.getDataConnectionMode());                
-        }
-        info.add("Default timeout: " + ftpClient.getDefaultTimeout() + "ms");
-        info.add("Socket timeout: " + ftpClient.getSoTimeout() + "ms");
-        info.add("Connect timeout: " + ftpClient.getConnectTimeout() + "ms");
-        info.add("Restart offset: " + ftpClient.getRestartOffset());
-        info.add("Is remote verification enabled: " + ftpClient.isRemoteVerificationEnabled());
-        info.add("Should use EPSV with IPv4: " + ftpClient.isUseEPSVwithIPv4());
-        return info;
-    }
-    
-    private void reinitialiseSession() throws IOException {
-        try {
-            if(!ftpClient.reinitialize())  { /* if FTPClient#reinitialize method fails 
-                                                then try manually connecting and moving 
-                                                to the last working directory */
-                throw new IOException();
-            }
-        } catch(IOException e) {
-            /* manually restore connection */
-            isSessionAlive = false;
-            String lastCWDPath = currentWorkingDirectory;
-            connect();
-            changeWorkingDirectory(lastCWDPath);
-            isSessionAlive = true;
-        }
-    }
-
-    /* new methods to be developed */
-    public void connect(final String hostName, final String userName, final String userPassword) throws IOException {
-        this.hostName = hostName;
-        this.userName = userName;
-        this.userPassword = userPassword;
-//        this.currentWorkingDirectoryPath = ROOT_PATH;
-        connect();
-    }
-    
-    /* new methods to be developed */
-    public void connect(final String hostName) throws IOException {
-        connect(hostName, ANONYMOUS_USER_NAME, ANONYMOUS_USER_PASSWORD);
-    }
-    
-    private String getParentPath(final String pathString) {
-//        Path parent = Paths.get(pathString).getParent();
-//        return parent == null ? null : parent.toString();
-        return pathString.substring(0, pathString.lastIndexOf('/')+1);
-    }
-
-    public long[] count(final String requestedRootPath) throws IOException {        
-        getRootTreeInfo(requestedRootPath);
-        return new long[] { dirCount, fileCount };
-    }
-    
-    public List<String> tree(final String requestedRootPath) throws IOException {        
-        return getRootTreeInfo(requestedRootPath);
-    }
-    
-    private List<String> getRootTreeInfo(final String requestedRootPath) throws IOException {
-        ensureConnectivity();
-        
-//        ftpClient.setListHiddenFiles(true);
-        String rootPath;
-        if(requestedRootPath.equals(CURRENT_PATH_ABBREVIATION))
-            rootPath = ftpClient.printWorkingDirectory();
-        else if(requestedRootPath.equals(PARENT_PATH_ABBREVIATION))
-            rootPath = getParentPath(ftpClient.printWorkingDirectory());
-        else 
-            rootPath = requestedRootPath;
-        
-        FTPFile root = getFile(rootPath);
-        if(root == null)
-            throw new IOException("Non-existent path: " + requestedRootPath);
-
-        List<String> lines = new ArrayList<>();
-        dirCount = fileCount = 0L; /* initialize global counters */
-        gatherTreeInfo(-1L, getParentPath(rootPath), root, lines);
-        lines.add(String.format("  [dirs=%d, files=%d, total=%d]",
-                                    dirCount, fileCount, dirCount+fileCount));
-
-        return lines;
-    }
-    
-    private void gatherTreeInfo(long level, 
-                                final String parentPath, 
-                                final FTPFile file, 
-                                final List<String> lines) throws IOException {
-        level++;
-        if(file.getName().equals(ROOT_PATH)) {
-            dirCount++;
-            lines.add(indentGraph(level) + ROOT_PATH);
-            for(FTPFile child: ftpClient.listFiles(ROOT_PATH))
-                gatherTreeInfo(level, ROOT_PATH, child, lines);
-        } else if(file.isDirectory()) {
-            dirCount++;
-            lines.add(indentGraph(level) + file.getName() + "/");
-            String newParentPath = parentPath + "/" + file.getName();
-            for(FTPFile child: ftpClient.listFiles(newParentPath))
-                gatherTreeInfo(level, newParentPath, child, lines);
-        } else {
-            fileCount++;
-            lines.add(indentGraph(level) + file.getName());
-        }
-    }
-    
-    private String indentGraph(final long level) {
-        StringBuilder sb = new StringBuilder();
-        for(int i=0; i<level; i++)
-            sb.append("    ");
-        sb.append("|-- ");
-        return sb.toString();
-    }
-    
-    public List<Map<String,FTPFile>> copy(final List<String> srcPathList, final String dstPath) throws IOException {
-        ensureConnectivity();
-        return fetch(srcPathList, dstPath, true);
-    }
-    
-    public List<Map<String,FTPFile>> get(final List<String> srcPathList, final String dstPath) throws IOException {
-        ensureConnectivity();
-        return fetch(srcPathList, dstPath, false);
-    }
-    
-    public List<List<File>> put(final List<String> srcPathList, final String dstDirPath) throws IOException {
-        Path remoteCWDFile = Paths.get(ftpClient.printWorkingDirectory());
-        Path localCWDFile  = Paths.get(System.getProperty("user.dir"));
-        
-        String dstDirFullPath = remoteCWDFile.resolve(dstDirPath).normalize().toString();
-        FTPFile dstDir = getFile(dstDirFullPath);
-        if(dstDir == null)
-            throw new IOException("Non-existent destination path: " + dstDirPath);
-        if(!dstDir.isDirectory())
-            throw new IOException("Destination path not a directory: " + dstDirPath);
-        
-        List<File> srcFileList = new ArrayList<>();
-        for(String path: srcPathList) {
-            File filePath = localCWDFile.resolve(path).normalize().toFile();
-            if(!filePath.exists())
-                throw new IOException("Non-existent source path: " + path);
-            srcFileList.add(filePath);
-        }
-                
-        succeededLocalFiles.clear();
-        failedLocalFiles.clear();
-        for(File file: srcFileList)
-            uploadRecursively(file, dstDirFullPath);
-        
-        return verboseLocalFileList;
-    }
-    
-    private void uploadRecursively(final File srcFile, final String dstPath) throws IOException {
-        uploadFile(srcFile, dstPath);
-        if(srcFile.isDirectory())
-            for(File file: srcFile.listFiles()) 
-                uploadRecursively(file, dstPath);
-    }
-    
-    private void uploadFile(final File srcFile, final String dstPath) throws IOException {
-        System.out.printf("  // upload: %s%s -> %s\n", srcFile.getPath(), srcFile.isDirectory() ? "/" : "", dstPath); // DEBUG
-        
-        String newDstFilePath = getValidNameForPasting(srcFile.getName(), srcFile.isDirectory(), dstPath);
-        try {
-            if(srcFile.isDirectory()) {
-                if(!ftpClient.makeDirectory(newDstFilePath))
-                    throw new IOException("Cannot create remote directory: " + newDstFilePath);
-            } else {
-                try (InputStream fin = new BufferedInputStream(new FileInputStream(srcFile))) {
-                    if(!ftpClient.storeFile(newDstFilePath, fin))
-                        throw new IOException("Cannot upload file to remote location as: " + newDstFilePath);
-                }
-            }
-            succeededLocalFiles.add(srcFile);
-        } catch(Exception e) {
-            failedLocalFiles.add(srcFile);
-        }
-    }
-    
-    /**
-     * <p>Copies from the source path recursively to the destination path.</p>
-     * @param srcPathList Has to be absolute.
-     * @param dstPath Has to be absolute.
-     * @return Number of files/dirs copied under srcPath.
-     * */
-    private List<Map<String,FTPFile>> fetch(final List<String> srcPathList, final String dstPath, final boolean copyOnRemote) throws IOException {
-        Path cwdFile = Paths.get(ftpClient.printWorkingDirectory());
-        Map<String,FTPFile> mapSrcFiles = new LinkedHashMap<>();
-        for(String path: srcPathList) {
-            String fullPath = cwdFile.resolve(path).normalize().toString();
-            FTPFile file = getFile(fullPath);
-            if(file == null)
-                throw new IOException("Non-existent source path: " + path);
-            mapSrcFiles.put(path, file);
-        }
-        
-        String dstFullPath;
-        if(copyOnRemote) { 
-            dstFullPath = cwdFile.resolve(dstPath).normalize().toString();
-            FTPFile dstFile = getFile(dstFullPath);
-            if(dstFile == null)
-                throw new IOException("Non-existent destination path: " + dstPath);
-            if(!dstFile.isDirectory())
-                throw new IOException("Destination path not a directory: " + dstPath);
-        } else {
-            dstFullPath = dstPath;      
-            File fetchDir = new File(dstPath);
-            if(!fetchDir.exists())
-                throw new IOException("Non-existent fetch location: " + fetchDir.getPath());
-            if(!fetchDir.isDirectory())
-                throw new IOException("Fetch location not a directory: " + fetchDir.getPath());
-        }
-        
-        succeededFTPFiles.clear();
-        failedFTPFiles.clear();        
-        if(copyOnRemote) 
-            tempTransferDir = FTPShell.getDirTempTransfers();
-        ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
-        
-        for(Map.Entry<String,FTPFile> entry: mapSrcFiles.entrySet()) {
-            String srcPath = entry.getKey();
-            FTPFile srcFile = entry.getValue();
-            if(copyOnRemote) {
-                if(dstFullPath.startsWith(srcPath))
-                    throw new IOException("Destination path is a subpath of the source path: " + srcPath);
-                fetchRecursively(getParentPath(srcPath), srcFile, getValidNameForPasting(srcFile.getName(), srcFile.isDirectory(), dstFullPath), true);
-            } else 
-                fetchRecursively(getParentPath(srcPath), srcFile, dstFullPath, false);
-        }
-        
-        /* Do clean up checks for safeguard -- ideally should already be empty */
-        if(copyOnRemote)
-            for(File file: tempTransferDir.listFiles())
-                file.delete(); /* ignore if operation fails */
-        
-        return verboseFTPFileList;
-    }
-    
-    /**
-     * @return Full path, including parent path and new file name
-     */
-    private String getValidNameForPasting(final String srcFileName, final boolean isSrcDirectory, final String dstParentPath) throws IOException {
-        /* Renames dst file name if already present in dst path */
-        int renameAttempt = 0;
-        String modFname = srcFileName;
-        String newDstPath;
-        while(pathExists(newDstPath=dstParentPath+"/"+modFname)) {
-//                printDebug("Already exists in dst dir: %s", modFname);
-            StringBuilder tmpName = new StringBuilder(srcFileName.length() + 5);
-
-            if(isSrcDirectory) { /* No extension checking for directories */
-                tmpName .insert(0, srcFileName)
-                        .append(" (").append(++renameAttempt).append(")");
-            } else { /* Extension checking for files */
-                int dotIdx = srcFileName.lastIndexOf('.');
-                String ext = srcFileName.substring(dotIdx == -1 ? srcFileName.length() : dotIdx);
-                String base = srcFileName.substring(0, dotIdx == -1 ? srcFileName.length() : dotIdx);
-                tmpName .insert(0, base)
-                        .append(" (").append(++renameAttempt).append(")")
-                        .append(ext);
-            }
-            modFname = tmpName.toString();
-        }
-
-        return newDstPath;
-    }
-
-    public List<Map<String,FTPFile>> move(final List<String> srcPathList, final String dstPath) throws IOException {
-        ensureConnectivity();
-        
-        Path cwdFile = Paths.get(ftpClient.printWorkingDirectory());
-        String newDstFullPath = cwdFile.resolve(dstPath).normalize().toString();
-        if(getFile(newDstFullPath) == null)
-            throw new IOException("Non-existent destination path: " + dstPath);
-        
-        Map<String,FTPFile> mapSrc = new LinkedHashMap<>();
-        for(String path: srcPathList) {
-            String fullPath = cwdFile.resolve(path).normalize().toString();
-            FTPFile file = getFile(fullPath);
-            if(file == null)
-                throw new IOException("Non-existent root path: " + path);
-            mapSrc.put(fullPath, file);
-        }
-        
-        succeededFTPFiles.clear();
-        failedFTPFiles.clear();        
-        for(Map.Entry<String,FTPFile> entry: mapSrc.entrySet()) {
-            try {
-                ftpClient.rename(entry.getKey(), newDstFullPath);
-                succeededFTPFiles.put(entry.getKey(), entry.getValue());
-            } catch(Exception e) {
-                failedFTPFiles.put(entry.getKey(), entry.getValue());
-            }
-        }
-        
-        return verboseFTPFileList;
-    }
-    
-    /**
-     * @param dstPath Has to be absolute
-     * */
-    private void fetchRecursively(final String srcParentPath, final FTPFile srcFile, final String dstPath, final boolean copyOnRemote) throws IOException {
-        fetchFile(srcParentPath, srcFile, dstPath, copyOnRemote);
-        if(srcFile.isDirectory()) {
-            String newSrcParentPath = srcParentPath+"/"+srcFile.getName();
-            for(FTPFile file: ftpClient.listFiles(newSrcParentPath))
-                fetchRecursively(newSrcParentPath, file, dstPath+"/"+file.getName(), copyOnRemote);
-        }
-    }
-
-    private void fetchFile(final String srcParentPath, final FTPFile srcFile, final String dstPath, final boolean copyOnRemote) throws IOException {
-        String srcFilePath = srcParentPath+ "/" + srcFile.getName();
-        String newDstFilePath = copyOnRemote ? getValidNameForPasting(srcFile.getName(), srcFile.isDirectory(), getParentPath(dstPath)) : dstPath + "/" + srcFile.getName();
-        try {
-            if(srcFile.isDirectory()) {
-                if(copyOnRemote) {
-                    /* check for duplicate entry, get proper file name */
-                    if(!ftpClient.makeDirectory(newDstFilePath))
-                        throw new IOException("Cannot create remote directory: " + newDstFilePath);
-                } else {
-                    if(!new File(newDstFilePath).mkdir())
-                        throw new IOException("Cannot make local directory: " + newDstFilePath);
-                }
-            } else {
-                /* Download to local file */
-                File fetchedFile = copyOnRemote ? File.createTempFile(hostName.replace('/', '+') + "_", null, tempTransferDir) : new File(newDstFilePath);
-//                tmpFetchedFile.deleteOnExit(); /* for safeguard */
-                try (OutputStream fout = new BufferedOutputStream(new FileOutputStream(fetchedFile))) {
-                    if(!ftpClient.retrieveFile(srcFilePath, fout))
-                        throw new IOException("Cannot fetch remote file: " + srcFilePath);
-                }
-                
-                if(copyOnRemote) {
-                    /* Upload to remote dst with correct name */
-                    try (InputStream fin = new BufferedInputStream(new FileInputStream(fetchedFile))) {
-                        if(!ftpClient.storeFile(newDstFilePath, fin))
-                            throw new IOException("Cannot upload file to remote location as: " + newDstFilePath);
-                    }
-                    fetchedFile.delete(); /* ignore if operation fails */
-                }
-            }
-            succeededFTPFiles.put(srcFilePath, srcFile);
-        } catch(Exception e) {
-            failedFTPFiles.put(srcFilePath, srcFile);
-        }
-    }
-
-    /**
-      * Gets the FTPFile object for the specified path, if exists.
-      * @return FTPFile object if exists else null
-      * */
-    private FTPFile getFile(final String pathString) throws IOException {
-        System.out.println("  // pathString=" + pathString); // DEBUG
-        if( pathString.equals("/") || /* ROOT_PATH */
-            pathString.equals("//") || 
-            pathString.equals("\\") || 
-            pathString.equals("\\\\") || 
-            pathString.equals("/\\")) {
-            FTPFile rootFile = new FTPFile();
-            rootFile.setName(ROOT_PATH);
-            rootFile.setType(FTPFile.DIRECTORY_TYPE);
-            return rootFile;
-        }
-        
-        final Path path = Paths.get(pathString);
-        final String parentPath = path.getParent().toString();
-        final String fileName = path.getFileName().toString();
-        
-//        int divIdx = path.lastIndexOf('/')+1;
-//        String parent = path.substring(0, divIdx);
-//        String child = path.substring(divIdx);
-        
-        for(FTPFile file: ftpClient.listFiles(parentPath))
-            if(file.getName().equals(fileName))
-                return file;
-        return null;
-    }
-
-    public void test() throws Exception {
-        System.out.println("ftpClient.printWorkingDirectory()=" + ftpClient.printWorkingDirectory());
-        System.out.println("currentWorkingDirectory=" + currentWorkingDirectory);
-    }
-
-    public boolean pathExists(final String path) throws IOException {
-        ensureConnectivity();
-        return getFile(path) != null;
-    }
-
-    /**
-     * Main handler for delete operation.
-     * 
-     * @param rootPathList Must be an abs path of a file/dir.
-     * 
-     * @return List of maps of FTPFiles and errors. First map is for the files 
-     * succeeded the operation and second map is for the files failed along with 
-     * the errors occurred.
-     */
-    public List<Map<String,FTPFile>> delete(final List<String> rootPathList) throws IOException {
-        ensureConnectivity();
-        
-        Path cwdFile = Paths.get(ftpClient.printWorkingDirectory());
-        Map<String,FTPFile> mapRootFiles = new LinkedHashMap<>();
-        for(String rootPath: rootPathList) {
-            String fullRootPath = cwdFile.resolve(rootPath).normalize().toString();            
-            if(fullRootPath.equals(ROOT_PATH))
-                throw new IOException("Cannot remove root path: " + rootPath);
-            FTPFile root = getFile(fullRootPath);
-            if(root == null)
-                throw new IOException("Non-existent root path: " + rootPath);
-            mapRootFiles.put(fullRootPath, root);
-        }
-        
-        succeededFTPFiles.clear();
-        failedFTPFiles.clear();        
-        for(Map.Entry<String,FTPFile> entry: mapRootFiles.entrySet())
-            delete(getParentPath(entry.getKey()), entry.getValue());
-        return verboseFTPFileList;
-    }
-
-    private void delete(final String cwd, final FTPFile root) throws IOException {
-        if(root.isDirectory()) {
-            String newCwd = cwd+"/"+root.getName();
-            for(FTPFile file : ftpClient.listFiles(newCwd))
-                delete(newCwd, file);
-        }
-        deleteFile(cwd, root);
-    }
-
-    /**
-     * Deletes specified file/directory.
-     */
-    private void deleteFile(final String cwd, final FTPFile file) {
-        final String path = cwd+"/"+file.getName();
-        try {
-            if(file.isDirectory()) {
-                if(!ftpClient.removeDirectory(path))
-                    throw new IOException();
-            } else {
-                if(!ftpClient.deleteFile(path))
-                    throw new IOException();
-            }   
-            succeededFTPFiles.put(path, file);
-        } catch(Exception e) {
-            failedFTPFiles.put(path, file);
-        }
-    }
-
-    public FTPFile[] getPathListing(final String pathRequested,
-                                    final boolean showDirsOnly,
-                                    final String filterArgument) throws IOException, PatternSyntaxException {
-        ensureConnectivity();
-        
-//        ftpClient.setListHiddenFiles(true);
-        FTPFileFilter filter;
-        Pattern matchPattern = filterArgument==null ? null : Pattern.compile(filterArgument);        
-        filter = file -> {
-            boolean accept = true;
-            if(matchPattern != null)
-                accept = matchPattern.matcher(file.getName()).matches();
-            if(showDirsOnly)
-                accept &= file.isDirectory();
-            return accept;
-        };
-        
-        FTPFile[] files;
-        String pathString;
-        if(pathRequested.equals(CURRENT_PATH_ABBREVIATION))
-            pathString = ftpClient.printWorkingDirectory();
-        else if(pathRequested.equals(PARENT_PATH_ABBREVIATION)) 
-            pathString = getParentPath(ftpClient.printWorkingDirectory());
-        else
-            pathString = pathRequested;
-        
-        if(getFile(pathString) == null)
-            throw new IOException("Non-existent path: " + pathRequested);
-        files = ftpClient.listFiles(pathString, filter);
-        if(files == null)
-            throw new IOException("Could not list files under: '"+ pathString +"'");
-        return files;
-    }
-
-    /**
-     * Creates directory, even if the parents don't exists.
-     * @path Can be a relative or absolute path.
-     */
-    public void mkdirs(final String pathString) throws IOException {
-        ensureConnectivity();
-        
-        /* Heuristics:
-         *   Convert pathString to absolute path, resolve & normalize 
-         *     and then inspect for existence and create.
-         */
-        
-        Path cwd = Paths.get(ftpClient.printWorkingDirectory());
-        Path requestedPath = cwd.resolve(pathString).normalize();
-        
-        String currentPathString = "/";        
-        for(int i=0, len=requestedPath.getNameCount(); i<len; i++) {
-            currentPathString += "/" + requestedPath.getName(i);
-            if(!pathExists(currentPathString))
-                if(!ftpClient.makeDirectory(currentPathString))
-                    throw new IOException("Cannot create directory: " + currentPathString);
-        }
-    }
-
-    /* Logs out and disconnects from server */
-    public void terminateSession() throws IOException {
-        try {
-            ftpClient.getStatus(); /* testing if session is alive */
-            isSessionAlive = true;
-        } catch(IOException e) { /* session not alive, so ignore */
-            isSessionAlive = false;
-        }        
-        ftpClient.logout(); /* ignoring the return value of logout method 
-                                as disconnecting is more important after it. 
-                                But left free to throw the IOException from inside it 
-                                for reporting any catastrophic error. */
-        currentWorkingDirectory = ROOT_PATH;
-        isSessionAlive = false;
-        ftpClient.disconnect();
-    }
-
-    private void connect() throws IOException {
-        if(isSessionAlive())
-            throw new IOException("Previous session still alive");
-        isSessionAlive = false;
-        
-        ftpClient.connect(hostName, PORT);
-
-        int replyCode = ftpClient.getReplyCode();
-        if (!FTPReply.isPositiveCompletion(replyCode))
-            throw new IOException("Connection failed. (Reply code:" + replyCode + ")");
-
-        if (!ftpClient.login(userName, userPassword))
-            throw new IOException("Log in failed. (Reply code: " + ftpClient.getReplyCode() + ")");
-        
-        /* use local passive mode to bypass firewall */
-        ftpClient.enterLocalPassiveMode();
-        currentWorkingDirectory = ROOT_PATH;
-        isSessionAlive = true;
-        ftpClient.setListHiddenFiles(true);
-    }
-    
-    private void ensureConnectivity() throws IOException {        
-        if(isSessionAlive) {
-            isSessionAlive = false;
-            try {
-                ftpClient.getStatus();
-            } catch (IOException e) {
-                reinitialiseSession();
-            }
-            isSessionAlive = true;
-        } else 
-            throw new FTPConnectionClosedException();
-    }
-
-    @Override
-    public void close() {
-        try {
-            terminateSession();
-        } catch(IOException e) { /* ignore */
-        }
-    }
-
-    public String getWorkingDirectory() throws IOException {
-        ensureConnectivity();
-        return ftpClient.printWorkingDirectory();
-    }
-
-    public void moveToRootDirectory() throws IOException {
-        ensureConnectivity();
-        if(!ftpClient.changeWorkingDirectory(ROOT_PATH)) 
-            throw new IOException("Cannot move to root directory from " + ftpClient.printWorkingDirectory());
-    }
-
-    /** 
-     * Due to the limitation of the FTPClient class have to 
-     * change the directory one by one and not at once.
-     * @param requestedPathString Can be a discontinued path (i.e. not relative to the PWD).
-     */
-    public void changeWorkingDirectory(final String requestedPathString) throws IOException {
-        ensureConnectivity();
-        
-        if(requestedPathString.equals(ROOT_PATH))
-            moveToRootDirectory();
-        else {
-            Path path = Paths.get(ftpClient.printWorkingDirectory())
-                            .resolve(requestedPathString)
-                            .normalize(); /* always converts to an absolute path */
-            moveToRootDirectory();
-            
-            for(int i=0, len=path.getNameCount(); i<len; i++) {
-                String pathDirComponent = path.getName(i).toString();
-                if(PARENT_PATH_ABBREVIATION.equals(pathDirComponent)) {
-                    if(!ftpClient.changeToParentDirectory()) 
-                        throw new IOException("Cannot move to parent directory from " + ftpClient.printWorkingDirectory());
-                } else {
-                    if(!ftpClient.changeWorkingDirectory(pathDirComponent))
-                        throw new IOException("Cannot move to directory " + pathDirComponent + " from " + ftpClient.printWorkingDirectory());
-                }
-            }
-        }
-        currentWorkingDirectory = ftpClient.printWorkingDirectory();
-    }
-
-    public void moveToParentDirectory() throws IOException {
-        ensureConnectivity();
-        if(!ftpClient.changeToParentDirectory()) 
-            throw new IOException("Cannot move to parent directory from " + ftpClient.printWorkingDirectory());
-    }
-
-    public String[] getServerReplies() throws IOException {
-        ensureConnectivity();
-        return ftpClient.getReplyStrings();
-    }
+package fs.ftp.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPConnectionClosedException;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPFileFilter;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.io.CopyStreamEvent;
+import org.apache.commons.net.io.Util;
+
+
+public class FTPHandler implements AutoCloseable {
+    /* Path abbreviations */
+    public static final String ROOT_PATH = "/";
+    public static final String CURRENT_PATH_ABBREVIATION = ".";
+    public static final String PARENT_PATH_ABBREVIATION = "..";
+    
+    private final FTPSessionClient ftpClient = new FTPSessionClient();
+    public  static final int DEFAULT_PORT = 21;
+    public  static final String ANONYMOUS_USER_NAME = "anonymous";
+    public  static final String ANONYMOUS_USER_PASSWORD = "";
+    public  static final int DEFAULT_MAX_SESSIONS = FTPSessionPool.DEFAULT_MAX_SIZE;
+    private static final int QUEUED_ITEMS_PER_WORKER = 64;
+    private static final long MIN_SEGMENT_SIZE = 8L * 1024 * 1024; /* smaller ranges gain less than their extra RETR costs */
+    private static final String PART_FILE_SUFFIX = ".part"; /* of a file downloaded in ranges until all are in */
+    public  static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    private static final FTPFile UNKNOWN_FILE = new FTPFile(); /* marker for unparsable lookups */
+    private static final long KEEPALIVE_IDLE_TIME = 60_000L; /* in ms, idle sessions get a NOOP after it */
+    /* in ms, for the pooled sessions, which have to get it before being evicted as idle */
+    private static final long POOLED_KEEPALIVE_IDLE_TIME = FTPSessionPool.DEFAULT_IDLE_TIMEOUT/2;
+    private static final long SYNC_TIME_TOLERANCE = 2_000L; /* in ms, FAT keeps 2 s, MDTM and most listings 1 s */
+    private static final long MINUTE = 60_000L, DAY = 24L * 60 * MINUTE; /* in ms */
+    private static final String NO_CHECKSUM_MESSAGE = "No checksum command advertised by the server (HASH, XSHA256, XSHA512, XSHA1, XMD5 or XCRC)";
+    /* Extensions of files deflating would not shrink, left in stream mode by AUTO compression */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "gz", "tgz", "bz2", "tbz2", "xz", "txz", "lz", "lzma", "zst", "z", "zip", "jar", "war", "7z", "rar", "cab", 
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "mp3", "aac", "ogg", "flac", "mp4", "m4a", "m4v", "mkv", "avi", 
+            "mov", "webm", "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub", "apk", "deb", "rpm"));
+    
+    private String hostName;
+    private String userName;
+    private String userPassword;
+    private String currentWorkingDirectory  = null; /* tracked on the client, absolute */
+    private boolean isAbsoluteCWDSupported  = true;   /* default value set, cleared for servers rejecting CWD to absolute paths */
+    private boolean isSessionAlive          = false;  /* default value set */
+    private FTPSessionClient copySession    = null; /* destination session of a remote copy */
+    private TransferOptions transferOptions = new TransferOptions(); /* of the ongoing get/put */
+    private FTPChecksum verifyChecksum = null; /* default value set, of the ongoing get/put if verifying */
+    private FTPDestinationNames destinationNames = null; /* names taken by the ongoing cp/put */
+    private final FTPListingCache listingCache = new FTPListingCache(FTPListingCache.DEFAULT_TTL, FTPListingCache.DEFAULT_MAX_ENTRIES);
+    private FTPServerFeatures serverFeatures = null; /* probed on connect */
+    private File featureCacheDir            = null; /* default value set */
+    private File snapshotDir                = null; /* default value set */
+    private OperationResult operationResult = new OperationResult(); /* of the ongoing get/put/cp/mv/rm */
+    private int maxSessions                 = DEFAULT_MAX_SESSIONS; /* default value set */
+    private int port                        = DEFAULT_PORT;         /* default value set */
+    private int sendBufferSize              = 0;     /* default value set, system default */
+    private int receiveBufferSize           = 0;     /* default value set, system default */
+    private boolean isPreallocationEnabled  = false; /* default value set */
+    private Compression compression         = Compression.OFF; /* default value set */
+    private volatile DirectBufferPool bufferPool = new DirectBufferPool(DEFAULT_BUFFER_SIZE);
+    private volatile FTPSessionPool sessionPool = null; /* also kept alive by the keepalive thread */
+    private ScheduledExecutorService keepAliveScheduler = null;
+    private final LongAdder keepAliveCount       = new LongAdder();
+    private final LongAdder failedKeepAliveCount = new LongAdder();
+    private long reconnectCount=0L, retriedCount=0L; /* default value set */
+    private final FTPCommandMetrics commandMetrics = new FTPCommandMetrics(); /* of all the sessions */
+    private final FTPSessionPool.SessionFactory sessionFactory = new FTPSessionPool.SessionFactory() {
+        @Override
+        public FTPSessionClient openSession() throws IOException {
+            return FTPHandler.this.openSession();
+        }
+
+        @Override
+        public void closeSession(final FTPSessionClient client) {
+            FTPHandler.this.closeSession(client);
+        }
+    };
+    
+    
+    /** Whether file data goes deflated (MODE Z) */
+    public enum Compression {
+        OFF,
+        /** For every file, unless the server refuses MODE Z */
+        ON,
+        /** If the server advertises MODE Z, for files not compressed already by their type */
+        AUTO
+    }
+    
+    /* A remote file, or a range of it, to be downloaded by a transfer worker */
+    private static final class FetchItem {
+        final String srcFilePath;
+        final FTPFile srcFile;
+        final File dstFile;
+        final SegmentedFetch segmentedFetch; /* null for a whole file */
+        final int segment;
+
+        FetchItem(final String srcFilePath, final FTPFile srcFile, final File dstFile) {
+            this(srcFilePath, srcFile, dstFile, null, 0);
+        }
+
+        FetchItem(final String srcFilePath, final FTPFile srcFile, final File dstFile, final SegmentedFetch segmentedFetch, final int segment) {
+            this.srcFilePath = srcFilePath;
+            this.srcFile = srcFile;
+            this.dstFile = dstFile;
+            this.segmentedFetch = segmentedFetch;
+            this.segment = segment;
+        }
+    }
+    
+    
+    /* 
+     * A remote file downloaded in ranges by several transfer workers at once, into 
+     * a part file renamed to the local file once all the ranges are in. The last 
+     * range to finish closes the part file and records the result.
+     */
+    private static final class SegmentedFetch {
+        final File partFile;
+        final FileChannel out;
+        final TransferProgress.FileTransfer transfer;
+        final long[] starts;  /* of each range, then the end of the last one */
+        final boolean[] isDone;
+        int pendingCount;
+        Exception failure = null; /* default value set, the first one */
+
+        SegmentedFetch(final File partFile, final FileChannel out, final TransferProgress.FileTransfer transfer, 
+                       final long offset, final long size, final int segmentCount) {
+            this.partFile = partFile;
+            this.out = out;
+            this.transfer = transfer;
+            this.starts = new long[segmentCount+1];
+            this.isDone = new boolean[segmentCount];
+            this.pendingCount = segmentCount;
+            for(int i=0; i<segmentCount; i++)
+                starts[i] = offset + (size - offset) / segmentCount * i;
+            starts[segmentCount] = size;
+        }
+
+        synchronized boolean hasFailed() {
+            return failure != null;
+        }
+
+        /* End of the leading ranges which are all in, for a resume to continue from */
+        synchronized long getCompletedEnd() {
+            int i = 0;
+            while(i < isDone.length && isDone[i])
+                i++;
+            return starts[i];
+        }
+    }
+    
+    
+    /* A local file to be uploaded by a transfer worker */
+    private static final class UploadItem {
+        final File srcFile;
+        final String dstFilePath;
+        final FTPFile dstFile; /* already present at the destination, if resuming */
+
+        UploadItem(final File srcFile, final String dstFilePath, final FTPFile dstFile) {
+            this.srcFile = srcFile;
+            this.dstFilePath = dstFilePath;
+            this.dstFile = dstFile;
+        }
+    }
+    
+    
+    /* A source file of a sync, to be transferred by a worker unless the checksums tell it is unchanged */
+    private static final class SyncItem {
+        final String remotePath;
+        final FTPFile remoteFile; /* null if not on the server yet */
+        final File localFile;
+        final boolean isChecksumNeeded;
+        final boolean isTimeLookUpNeeded; /* the listed remote time is not precise enough to compare */
+
+        SyncItem(final String remotePath, final FTPFile remoteFile, final File localFile, final boolean isChecksumNeeded) {
+            this(remotePath, remoteFile, localFile, isChecksumNeeded, false);
+        }
+
+        SyncItem(final String remotePath, final FTPFile remoteFile, final File localFile, final boolean isChecksumNeeded, 
+                 final boolean isTimeLookUpNeeded) {
+            this.remotePath = remotePath;
+            this.remoteFile = remoteFile;
+            this.localFile = localFile;
+            this.isChecksumNeeded = isChecksumNeeded;
+            this.isTimeLookUpNeeded = isTimeLookUpNeeded;
+        }
+    }
+    
+    
+    /* An operation on the primary session which can safely be run again */
+    private interface IdempotentCall<T> {
+        T call() throws IOException;
+    }
+    
+    
+    public FTPHandler() {
+        ftpClient.addProtocolCommandListener(commandMetrics.newSessionListener());
+    }    
+    
+    public boolean isSessionAlive() {
+//        return ftpClient.isConnected();
+        return isSessionAlive;
+    }
+    
+    public String getHostName() {
+        return hostName;
+    }
+    
+    public String getUserName() {
+        return userName;
+    }
+    
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+    
+    /**
+     * Sets the maximum number of pooled sessions kept open to the host, 
+     * in addition to the primary one. Takes effect from the next connection.
+     */
+    public void setMaxSessions(final int maxSessions) {
+        if(maxSessions < 1)
+            throw new IllegalArgumentException("Invalid max sessions: " + maxSessions);
+        this.maxSessions = maxSessions;
+    }
+    
+    /**
+     * Sets the control port of the host. Takes effect from the next connection.
+     */
+    public void setPort(final int port) {
+        if(port < 1 || port > 65535)
+            throw new IllegalArgumentException("Invalid port: " + port);
+        this.port = port;
+    }
+    
+    /**
+     * Sets the size of the buffers moving file data: the direct buffers of the 
+     * local file channels, the copy buffer of cp and the stream buffers of the 
+     * client. Takes effect from the next connection for the latter.
+     */
+    public void setBufferSize(final int bufferSize) {
+        if(bufferSize < 1)
+            throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+        if(bufferSize != bufferPool.getBufferSize())
+            bufferPool = new DirectBufferPool(bufferSize);
+    }
+    
+    /**
+     * Sets the socket send (SO_SNDBUF) and receive (SO_RCVBUF) buffer sizes of the 
+     * data connections, 0 for the system default. A fixed size turns off the 
+     * system's own tuning of the receive window, so it only pays off on links 
+     * whose bandwidth-delay product exceeds what the system grows to. 
+     * Takes effect from the next connection.
+     */
+    public void setSocketBufferSizes(final int sendBufferSize, final int receiveBufferSize) {
+        if(sendBufferSize < 0 || receiveBufferSize < 0)
+            throw new IllegalArgumentException("Invalid socket buffer sizes: " + sendBufferSize + ", " + receiveBufferSize);
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+    }
+    
+    /**
+     * Downloaded files are extended to their full size before being written. 
+     * A download which is killed leaves a file of full size behind, which a 
+     * later resume takes as complete; failed downloads are cut back to what 
+     * was received. Files downloaded in ranges are written to a part file 
+     * first, so a killed download of theirs is never taken as complete.
+     */
+    public void setPreallocationEnabled(final boolean isPreallocationEnabled) {
+        this.isPreallocationEnabled = isPreallocationEnabled;
+    }
+    
+    /**
+     * Sets whether file data goes deflated (MODE Z) on get and put. Only whole 
+     * files do, not resumed ones nor segments of a file, nor the files of cp. 
+     * Files are sent and received in stream mode if the server refuses MODE Z.
+     */
+    public void setCompression(final Compression compression) {
+        this.compression = Objects.requireNonNull(compression);
+    }
+    
+    /**
+     * Sets the directory to keep the probed server features (FEAT) of each host in,
+     * so reconnecting to a known host skips the probe.
+     * @param dir Null to probe on every connection.
+     */
+    public void setFeatureCacheDirectory(final File dir) {
+        this.featureCacheDir = dir;
+    }
+    
+    /**
+     * Sets the directory to keep the snapshots of remote trees in, 
+     * a subdirectory per host.
+     */
+    public void setSnapshotDirectory(final File dir) {
+        this.snapshotDir = dir;
+    }
+    
+    public String getServerHelpString() throws IOException {
+        return callWithReconnect(ftpClient::listHelp);
+    }
+    
+    public List<String> getConnectionStatistics() throws IOException {
+        ensureConnectivity();
+        
+        List<String> info = new ArrayList<>();
+        info.add("Host name: " + hostName);
+        info.add("Passive host name: " + Objects.toString(ftpClient.getPassiveHost(), "N/A"));
+        info.add("Passive local address: " + Objects.toString(ftpClient.getPassiveLocalIPAddress(), "N/A"));
+        info.add("Passive port: " + ftpClient.getPassivePort());
+        info.add("Default port: " + ftpClient.getDefaultPort());
+        info.add("Local address: " + Objects.toString(ftpClient.getLocalAddress(), "N/A"));
+        info.add("Local port: " + ftpClient.getLocalPort());
+        info.add("Proxy: " + Objects.toString(ftpClient.getProxy(), "N/A"));
+        info.add("Remote address: " + Objects.toString(ftpClient.getRemoteAddress()));
+        info.add("Remote port: " + ftpClient.getRemotePort());
+        info.add("User name: " + userName);
+        info.add("Status: " + Objects.toString(ftpClient.getStatus(), "N/A"));
+        info.add("System type: " + Objects.toString(ftpClient.getSystemType(), "N/A"));
+        info.add("Control keep alive reply timeout: " + ftpClient.getControlKeepAliveReplyTimeout() + "ms");
+        info.add("Control keep alive timeout: " + ftpClient.getControlKeepAliveTimeout() + "ms");
+        switch(ftpClient.getDataConnectionMode()) {
+            case FTPClient.ACTIVE_LOCAL_DATA_CONNECTION_MODE:
+                info.add("Data connection mode: ACTIVE_LOCAL_DATA_CONNECTION_MODE");
+                break;
+            case FTPClient.ACTIVE_REMOTE_DATA_CONNECTION_MODE:
+                info.add("Data connection mode: ACTIVE_REMOTE_DATA_CONNECTION_MODE");
+                break;
+            case FTPClient.PASSIVE_LOCAL_DATA_CONNECTION_MODE:
+                info.add("Data connection mode: PASSIVE_LOCAL_DATA_CONNECTION_MODE");
+                break;
+            case FTPClient.PASSIVE_REMOTE_DATA_CONNECTION_MODE:
+                info.add("Data connection mode: PASSIVE_REMOTE_DATA_CONNECTION_MODE");
+                break;
+            default: 
+                info.add("Data connection mode: " + ftpClient.getDataConnectionMode());                
+        }
+        info.add("Default timeout: " + ftpClient.getDefaultTimeout() + "ms");
+        info.add("Socket timeout: " + ftpClient.getSoTimeout() + "ms");
+        info.add("Connect timeout: " + ftpClient.getConnectTimeout() + "ms");
+        info.add("Restart offset: " + ftpClient.getRestartOffset());
+        info.add(String.format("Buffers: transfer=%d, socket send=%s, socket receive=%s, preallocation=%s", 
+                                bufferPool.getBufferSize(), 
+                                sendBufferSize == 0 ? "system" : String.valueOf(sendBufferSize), 
+                                receiveBufferSize == 0 ? "system" : String.valueOf(receiveBufferSize), 
+                                isPreallocationEnabled ? "on" : "off"));
+        info.add(String.format("Compression: %s, MODE Z %s", compression.name().toLowerCase(Locale.ROOT), 
+                                serverFeatures == null ? "N/A" : serverFeatures.hasDeflateMode() ? "advertised" : "not advertised"));
+        info.add("Is remote verification enabled: " + ftpClient.isRemoteVerificationEnabled());
+        info.add("Should use EPSV with IPv4: " + ftpClient.isUseEPSVwithIPv4());
+        info.add("Session pool: " + (sessionPool == null ? "N/A" : sessionPool.getStatistics()));
+        info.add("Server features: " + Objects.toString(serverFeatures, "N/A"));
+        info.add(String.format("Keepalive: idle time=%dms, pooled idle time=%dms, probes=%d, failed=%d", 
+                                KEEPALIVE_IDLE_TIME, POOLED_KEEPALIVE_IDLE_TIME, keepAliveCount.sum(), failedKeepAliveCount.sum()));
+        info.add(String.format("Reconnects: %d, retried commands: %d", reconnectCount, retriedCount));
+        return info;
+    }
+    
+    /* Replaces the broken primary session with a new one, moved to the last working directory */
+    private void reinitialiseSession() throws IOException {
+        String lastCWDPath = currentWorkingDirectory;
+        isSessionAlive = false;
+        synchronized(ftpClient) { /* not to be kept alive meanwhile */
+            try {
+                ftpClient.disconnect();
+            } catch(IOException e) { /* ignore, broken anyway */
+            }
+            connect();
+        }
+        reconnectCount++;
+        moveToDirectory(lastCWDPath);
+    }
+
+    /* new methods to be developed */
+    public void connect(final String hostName, final String userName, final String userPassword) throws IOException {
+        this.hostName = hostName;
+        this.userName = userName;
+        this.userPassword = userPassword;
+//        this.currentWorkingDirectoryPath = ROOT_PATH;
+        connect();
+    }
+    
+    /* new methods to be developed */
+    public void connect(final String hostName) throws IOException {
+        connect(hostName, ANONYMOUS_USER_NAME, ANONYMOUS_USER_PASSWORD);
+    }
+    
+    private String getParentPath(final String pathString) {
+//        Path parent = Paths.get(pathString).getParent();
+//        return parent == null ? null : parent.toString();
+        return pathString.substring(0, pathString.lastIndexOf('/')+1);
+    }
+
+    public long[] count(final String requestedRootPath) throws IOException {        
+        return callWithReconnect(() -> {
+            String rootPath = getRootPathForWalk(requestedRootPath); /* connects the session pool too */
+            FTPTreeWalker walker = new FTPTreeWalker(sessionPool, this::listFilesOrFail);
+            walker.count(rootPath, getRootFileForWalk(rootPath, requestedRootPath));
+            return new long[] { walker.getDirCount(), walker.getFileCount() };
+        });
+    }
+    
+    /**
+     * Streams the tree to the visitor in depth-first listing order, while 
+     * the directories ahead are listed concurrently over the pooled sessions.
+     * @param maxDepth Directories at this depth are not listed, negative for no limit.
+     * @param dirsOnly If set, files are not passed to the visitor.
+     * @return Number of directories and files walked.
+     */
+    public long[] tree(final String requestedRootPath, 
+                       final int maxDepth, 
+                       final boolean dirsOnly, 
+                       final FTPTreeVisitor visitor) throws IOException {        
+        String rootPath = getRootPathForWalk(requestedRootPath); /* connects the session pool too */
+        FTPTreeWalker walker = new FTPTreeWalker(sessionPool, this::listFiles);
+        walker.visit(rootPath, getRootFileForWalk(rootPath, requestedRootPath), maxDepth, (depth, path, file) -> {
+            if(!dirsOnly || file.isDirectory())
+                visitor.visit(depth, path, file);
+        });
+        return new long[] { walker.getDirCount(), walker.getFileCount() };
+    }
+    
+    private String getRootPathForWalk(final String requestedRootPath) throws IOException {
+        ensureConnectivity();
+        return Paths.get(currentWorkingDirectory).resolve(requestedRootPath).normalize().toString();
+    }
+    
+    private FTPFile getRootFileForWalk(final String rootPath, final String requestedRootPath) throws IOException {
+        FTPFile root = getFile(rootPath);
+        if(root == null)
+            throw new IOException("Non-existent path: " + requestedRootPath);
+        return root;
+    }
+    
+    /**
+     * Streams the entries of the tree matching the criteria as soon as their 
+     * directory is listed, in no particular order. Directories are listed 
+     * concurrently over the pooled sessions, except those below the max depth 
+     * or pruned, and nothing is held once matched. A directory that cannot be 
+     * listed is passed to the listFailed of the visitor, and the others are 
+     * still walked.
+     * @param visitor Called by a single thread at a time, leave is not called.
+     * @return Number of directories and files examined, of matching entries, 
+     *         and of directories that could not be listed.
+     */
+    public long[] find(final String requestedRootPath, 
+                       final FindCriteria criteria, 
+                       final FTPTreeVisitor visitor) throws IOException {        
+        String rootPath = getRootPathForWalk(requestedRootPath); /* connects the session pool too */
+        FTPTreeWalker walker = new FTPTreeWalker(sessionPool, this::listFilesOrFail);
+        long[] matchCount = new long[2];
+        walker.visitUnordered(rootPath, getRootFileForWalk(rootPath, requestedRootPath), 
+                              (depth, path, dir) -> criteria.isPruned(depth, dir), 
+                              newFindVisitor(criteria, visitor, matchCount));
+        return new long[] { walker.getDirCount(), walker.getFileCount(), matchCount[0], matchCount[1] };
+    }
+    
+    /**
+     * Finds in the snapshot covering the path, see {@link #find(String, FindCriteria, FTPTreeVisitor)}. 
+     * Entries come in depth-first order by name.
+     * @param offlineHostName See {@link #getOfflinePathListing(String, String, boolean, String)}.
+     */
+    public long[] offlineFind(final String offlineHostName,
+                              final String requestedRootPath, 
+                              final FindCriteria criteria, 
+                              final FTPTreeVisitor visitor) throws IOException {
+        String rootPath = getOfflinePath(requestedRootPath);
+        try (FTPSnapshot snapshot = openSnapshot(offlineHostName, rootPath)) {
+            long[] matchCount = new long[2];
+            long[] count = snapshot.visit(rootPath, -1, (depth, path, dir) -> criteria.isPruned(depth, dir), 
+                                          newFindVisitor(criteria, visitor, matchCount));
+            return new long[] { count[0], count[1], matchCount[0], matchCount[1] };
+        }
+    }
+    
+    /* Passes on the matching entries and the listing failures, counting them */
+    private static FTPTreeVisitor newFindVisitor(final FindCriteria criteria, final FTPTreeVisitor visitor, final long[] matchCount) {
+        return new FTPTreeVisitor() {
+            @Override
+            public void visit(final int depth, final String path, final FTPFile file) throws IOException {
+                if(criteria.matches(file)) {
+                    matchCount[0]++;
+                    visitor.visit(depth, path, file);
+                }
+            }
+
+            @Override
+            public void listFailed(final int depth, final String path, final FTPFile dir, final IOException e) throws IOException {
+                matchCount[1]++;
+                visitor.listFailed(depth, path, dir, e);
+            }
+        };
+    }
+    
+    /**
+     * Takes a snapshot of the remote tree into an index file of the snapshot 
+     * directory, replacing the previous one of the same root, for listings, 
+     * walks and counts to be answered offline from it.
+     * @param isRefresh If set, the directories whose modification time is the 
+     *          one in the previous snapshot are taken from it instead of being 
+     *          listed again; files rewritten in place keep their previous 
+     *          size and time then, as their directory time does not change.
+     * @return Number of directories and files in the snapshot, and of directories listed.
+     */
+    public long[] snapshot(final String requestedRootPath, final boolean isRefresh) throws IOException {
+        if(snapshotDir == null)
+            throw new IOException("No snapshot directory set");
+        String rootPath = getRootPathForWalk(requestedRootPath); /* connects the session pool too */
+        FTPFile root = getRootFileForWalk(rootPath, requestedRootPath);
+        if(!root.isDirectory())
+            throw new IOException("Not a directory: " + requestedRootPath);
+        
+        File file = getSnapshotFile(hostName, rootPath);
+        File hostDir = file.getParentFile();
+        if(!hostDir.isDirectory() && !hostDir.mkdirs())
+            throw new IOException("Cannot create snapshot directory: " + hostDir.getAbsolutePath());
+        FTPSnapshot previous = isRefresh && file.isFile() ? FTPSnapshot.open(file) : null;
+        long createdTime = System.currentTimeMillis(); /* before the walk, changes meanwhile may be missed */
+        try (FTPSnapshot.Writer writer = new FTPSnapshot.Writer(file, hostName, rootPath)) {
+            FTPSnapshotBuilder builder = new FTPSnapshotBuilder(sessionPool, new FTPSnapshotBuilder.Lister() {
+                @Override
+                public FTPFile[] listFiles(final FTPSessionClient session, final String dirPath) throws IOException {
+                    return FTPHandler.this.listFiles(session, dirPath);
+                }
+                
+                @Override
+                public boolean canLookUp() {
+                    return serverFeatures != null && serverFeatures.has(FTPServerFeatures.MLST);
+                }
+                
+                @Override
+                public FTPFile lookUp(final FTPSessionClient session, final String path) throws IOException {
+                    FTPFile file = session.mlistFile(path);
+                    if(file == null && FTPReply.isPositiveCompletion(session.getReplyCode()))
+                        throw new IOException("Unexpected MLST reply for: " + path + " (Reply: " + session.getReplyString().trim() + ")");
+                    return file;
+                }
+            }, previous, writer);
+            builder.build(rootPath, root);
+            writer.finish(createdTime);
+            return new long[] { builder.getDirCount(), builder.getFileCount(), builder.getListedCount() };
+        }
+    }
+    
+    /**
+     * Lists from the snapshot covering the path, see {@link #getPathListing(String, boolean, String)}.
+     * Relative paths are resolved against the last working directory.
+     * @param offlineHostName Host the snapshot was taken of; null for the host of the 
+     *          last connection, else the only host with snapshots.
+     */
+    public FTPFile[] getOfflinePathListing(final String offlineHostName,
+                                           final String pathRequested,
+                                           final boolean showDirsOnly,
+                                           final String filterArgument) throws IOException, PatternSyntaxException {
+        FTPFileFilter filter = newListingFilter(showDirsOnly, filterArgument);
+        String pathString = getOfflinePath(pathRequested);
+        try (FTPSnapshot snapshot = openSnapshot(offlineHostName, pathString)) {
+            List<FTPFile> files = new ArrayList<>();
+            for(FTPFile file: snapshot.list(pathString))
+                if(filter.accept(file))
+                    files.add(file);
+            return files.toArray(new FTPFile[files.size()]);
+        }
+    }
+    
+    /**
+     * Walks the snapshot covering the path, see {@link #tree(String, int, boolean, FTPTreeVisitor)}. 
+     * Entries come sorted by name.
+     * @param offlineHostName See {@link #getOfflinePathListing(String, String, boolean, String)}.
+     */
+    public long[] offlineTree(final String offlineHostName,
+                              final String requestedRootPath, 
+                              final int maxDepth, 
+                              final boolean dirsOnly, 
+                              final FTPTreeVisitor visitor) throws IOException {
+        String rootPath = getOfflinePath(requestedRootPath);
+        try (FTPSnapshot snapshot = openSnapshot(offlineHostName, rootPath)) {
+            return snapshot.visit(rootPath, maxDepth, null, (depth, path, file) -> {
+                if(!dirsOnly || file.isDirectory())
+                    visitor.visit(depth, path, file);
+            });
+        }
+    }
+    
+    /**
+     * Counts from the snapshot covering the path, see {@link #count(String)}.
+     * @param offlineHostName See {@link #getOfflinePathListing(String, String, boolean, String)}.
+     */
+    public long[] offlineCount(final String offlineHostName, final String requestedRootPath) throws IOException {
+        String rootPath = getOfflinePath(requestedRootPath);
+        try (FTPSnapshot snapshot = openSnapshot(offlineHostName, rootPath)) {
+            return snapshot.count(rootPath);
+        }
+    }
+    
+    /* Absolute, against the working directory of the last session if any */
+    private String getOfflinePath(final String requestedPath) {
+        return Paths.get(currentWorkingDirectory == null ? ROOT_PATH : currentWorkingDirectory)
+                    .resolve(requestedPath)
+                    .normalize()
+                    .toString();
+    }
+    
+    /**
+     * Opens the snapshot of the host with the deepest root covering the path.
+     * @param offlineHostName Null for the host of the last connection, else the only host with snapshots.
+     * @param path Absolute path.
+     * @throws IOException If none does.
+     */
+    private FTPSnapshot openSnapshot(final String offlineHostName, final String path) throws IOException {
+        if(snapshotDir == null)
+            throw new IOException("No snapshot directory set");
+        String snapshotHostName = offlineHostName != null ? offlineHostName : hostName;
+        if(snapshotHostName == null) {
+            File[] hostDirs = snapshotDir.listFiles(File::isDirectory);
+            if(hostDirs == null || hostDirs.length != 1)
+                throw new IOException("No host to answer offline for, name one or connect first");
+            snapshotHostName = hostDirs[0].getName();
+        }
+        for(Path rootPath = Paths.get(path); rootPath != null; rootPath = rootPath.getParent()) {
+            File file = getSnapshotFile(snapshotHostName, rootPath.toString());
+            if(file.isFile())
+                return FTPSnapshot.open(file);
+        }
+        throw new IOException("No snapshot of " + snapshotHostName + " covers: " + path);
+    }
+    
+    /* The root path is encoded into a single file name */
+    private File getSnapshotFile(final String hostName, final String rootPath) throws IOException {
+        String fileName = URLEncoder.encode(rootPath, StandardCharsets.UTF_8.name()).replace("*", "%2A");
+        return new File(new File(snapshotDir, hostName.replace('/', '+')), fileName + FTPSnapshot.FILE_EXTENSION);
+    }
+    
+    public OperationResult copy(final List<String> srcPathList, final String dstPath) throws IOException {
+        return copy(srcPathList, dstPath, new TransferOptions(), new OperationResult());
+    }
+    
+    /**
+     * @param options Only the progress applies, files are copied one at a time.
+     * @param result Records the remote source paths.
+     */
+    public OperationResult copy(final List<String> srcPathList, final String dstPath, final TransferOptions options, 
+                                final OperationResult result) throws IOException {
+        ensureConnectivity();
+        return fetch(srcPathList, dstPath, true, options, result);
+    }
+    
+    public OperationResult get(final List<String> srcPathList, final String dstPath) throws IOException {
+        return get(srcPathList, dstPath, new TransferOptions(), new OperationResult());
+    }
+    
+    /**
+     * @param result Records the remote source paths.
+     */
+    public OperationResult get(final List<String> srcPathList, final String dstPath, final TransferOptions options, 
+                               final OperationResult result) throws IOException {
+        ensureConnectivity();
+        return fetch(srcPathList, dstPath, false, options, result);
+    }
+    
+    public OperationResult put(final List<String> srcPathList, final String dstDirPath) throws IOException {
+        return put(srcPathList, dstDirPath, new TransferOptions(), new OperationResult());
+    }
+    
+    /**
+     * @param result Records the local source paths.
+     */
+    public OperationResult put(final List<String> srcPathList, final String dstDirPath, final TransferOptions options, 
+                               final OperationResult result) throws IOException {
+        ensureConnectivity();
+        
+        Path remoteCWDFile = Paths.get(currentWorkingDirectory);
+        Path localCWDFile  = Paths.get(System.getProperty("user.dir"));
+        
+        String dstDirFullPath = remoteCWDFile.resolve(dstDirPath).normalize().toString();
+        FTPFile dstDir = getFile(dstDirFullPath);
+        if(dstDir == null)
+            throw new IOException("Non-existent destination path: " + dstDirPath);
+        if(!dstDir.isDirectory())
+            throw new IOException("Destination path not a directory: " + dstDirPath);
+        
+        List<File> srcFileList = new ArrayList<>();
+        for(String path: srcPathList) {
+            File filePath = localCWDFile.resolve(path).normalize().toFile();
+            if(!filePath.exists())
+                throw new IOException("Non-existent source path: " + path);
+            srcFileList.add(filePath);
+        }
+        FTPChecksum checksum = getVerifyChecksum(options);
+                
+        operationResult = result;
+        ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+        transferOptions = options;
+        verifyChecksum = checksum;
+        destinationNames = new FTPDestinationNames(dirPath -> listDirectory(dirPath).files);
+        Map<String,FTPFile> dstEntries = getResumableEntries(dstDirFullPath);
+        if(options.getParallelism() > 1)
+            uploadInParallel(srcFileList, dstDirFullPath, dstEntries);
+        else
+            for(File file: srcFileList)
+                uploadRecursively(file, dstDirFullPath, dstEntries);
+        options.getProgress().walkDone();
+        
+        return result;
+    }
+    
+    /**
+     * @param dstEntries Entries already present under dstPath, keyed by name.
+     */
+    private void uploadRecursively(final File srcFile, final String dstPath, final Map<String,FTPFile> dstEntries) throws IOException {
+        FTPFile dstFile = getResumableEntry(srcFile, dstEntries);
+        String newDstFilePath = uploadFile(srcFile, dstPath, dstFile);
+        if(srcFile.isDirectory() && newDstFilePath != null) {
+            Map<String,FTPFile> entries = dstFile == null ? Collections.emptyMap() : getResumableEntries(newDstFilePath);
+            for(File file: srcFile.listFiles()) 
+                uploadRecursively(file, newDstFilePath, entries);
+        }
+    }
+    
+    /**
+     * @param dstFile Same named entry already present under dstPath to resume into, else null.
+     * @return Full remote path of the uploaded file, null if failed.
+     */
+    private String uploadFile(final File srcFile, final String dstPath, final FTPFile dstFile) throws IOException {
+        String newDstFilePath = dstFile == null ? getValidNameForPasting(srcFile.getName(), srcFile.isDirectory(), dstPath) : dstPath + "/" + srcFile.getName();
+        try {
+            if(srcFile.isDirectory()) {
+                if(dstFile == null) {
+                    if(!makeRemoteDirectory(ftpClient, newDstFilePath))
+                        throw getReplyFailure(ftpClient, "Cannot create remote directory: " + newDstFilePath);
+                    destinationNames.addCreatedDirectory(newDstFilePath);
+                }
+            } else {
+                transferOptions.getProgress().walked(srcFile.length());
+                storeFromLocalFile(ftpClient, srcFile, newDstFilePath, dstFile);
+            }
+            recordSucceeded(srcFile);
+            return newDstFilePath;
+        } catch(Exception e) {
+            recordFailed(srcFile, e);
+            return null;
+        }
+    }
+    
+    /**
+     * Scans the local source trees as a pipeline stage: each directory is created 
+     * on the primary session as soon as it is found, and its files are queued right 
+     * away for the workers to upload over pooled sessions.
+     * The free names of all the roots are reserved in one go before any transfer 
+     * starts, anything below them goes into a fresh directory.
+     * @param dstDirPath Absolute remote directory to place the uploaded files in.
+     */
+    private void uploadInParallel(final List<File> srcFileList, final String dstDirPath, final Map<String,FTPFile> dstEntries) throws IOException {
+        final int parallelism = transferOptions.getParallelism();
+        FTPWorkerGroup<UploadItem> workers = new FTPWorkerGroup<>(
+                "ftp-put", sessionPool, parallelism, parallelism*QUEUED_ITEMS_PER_WORKER, null,
+                new FTPWorkerGroup.Worker<UploadItem>() {
+                    @Override
+                    public void process(final FTPSessionClient session, final UploadItem item) throws IOException {
+                        storeFromLocalFile(session, item.srcFile, item.dstFilePath, item.dstFile);
+                        recordSucceeded(item.srcFile);
+                    }
+
+                    @Override
+                    public void failed(final UploadItem item, final Exception e) {
+                        recordFailed(item.srcFile, e);
+                    }
+                });
+        try {
+            List<FTPFile> dstFiles = new ArrayList<>(srcFileList.size());
+            List<String> dstFilePaths = new ArrayList<>(srcFileList.size());
+            for(File file: srcFileList) {
+                FTPFile dstFile = getResumableEntry(file, dstEntries);
+                dstFiles.add(dstFile);
+                dstFilePaths.add(dstFile == null ? getValidNameForPasting(file.getName(), file.isDirectory(), dstDirPath) : dstDirPath + "/" + file.getName());
+            }
+            for(int i=0, len=srcFileList.size(); i<len; i++)
+                walkForUpload(srcFileList.get(i), dstFilePaths.get(i), dstFiles.get(i), workers);
+            transferOptions.getProgress().walkDone();
+        } finally {
+            workers.finish();
+        }
+    }
+    
+    private void walkForUpload(final File srcFile, final String dstFilePath, final FTPFile dstFile, final FTPWorkerGroup<UploadItem> workers) throws IOException {
+        if(!srcFile.isDirectory()) {
+            transferOptions.getProgress().walked(srcFile.length());
+            workers.submit(new UploadItem(srcFile, dstFilePath, dstFile));
+            return;
+        }
+        
+        if(dstFile == null && !makeRemoteDirectory(ftpClient, dstFilePath)) {
+            recordFailed(srcFile, getReplyFailure(ftpClient, "Cannot create remote directory: " + dstFilePath));
+            return; /* nothing can be placed under it */
+        }
+        recordSucceeded(srcFile);
+        Map<String,FTPFile> entries = dstFile == null ? Collections.emptyMap() : getResumableEntries(dstFilePath);
+        File[] files = srcFile.listFiles();
+        if(files != null)
+            for(File file: files) {
+                FTPFile entry = getResumableEntry(file, entries);
+                String entryPath = dstFile == null || entry != null ? /* fresh directory or resuming */ 
+                                        dstFilePath + "/" + file.getName() : 
+                                        getValidNameForPasting(file.getName(), file.isDirectory(), dstFilePath);
+                walkForUpload(file, entryPath, entry, workers);
+            }
+    }
+    
+    /**
+     * Lists the remote directory for resuming into it.
+     * @return Entries keyed by name, empty if not resuming.
+     */
+    private Map<String,FTPFile> getResumableEntries(final String dirPath) throws IOException {
+        if(!transferOptions.isResumeEnabled())
+            return Collections.emptyMap();
+        Map<String,FTPFile> entries = new HashMap<>();
+        for(FTPFile file: listFiles(ftpClient, dirPath))
+            entries.put(file.getName(), file);
+        return entries;
+    }
+    
+    /**
+     * @return The same named remote entry of the same type to resume into, else null.
+     */
+    private FTPFile getResumableEntry(final File srcFile, final Map<String,FTPFile> dstEntries) {
+        FTPFile dstFile = dstEntries.get(srcFile.getName());
+        return dstFile != null && dstFile.isDirectory() == srcFile.isDirectory() ? dstFile : null;
+    }
+    
+    /**
+     * @param dstFile Partial remote file to append the rest to, if resuming, else null.
+     */
+    private void storeFromLocalFile(final FTPSessionClient client, final File srcFile, final String dstFilePath, final FTPFile dstFile) throws IOException {
+        long offset = 0L; /* default value set */
+        if(dstFile != null) {
+            if(dstFile.getSize() == srcFile.length()) {
+                transferOptions.getProgress().skipped(srcFile.length());
+                return; /* already complete */
+            }
+            if(dstFile.getSize() > 0 && dstFile.getSize() < srcFile.length())
+                offset = dstFile.getSize();
+        }
+        
+        TransferProgress.FileTransfer transfer = transferOptions.getProgress().start(dstFilePath, srcFile.length(), offset);
+        FTPChecksum.Digest digest = verifyChecksum == null ? null : verifyChecksum.newDigest();
+        boolean isDone = false; /* default value set */
+        try (FileChannel in = FileChannel.open(srcFile.toPath(), StandardOpenOption.READ)) {
+            if(digest != null && offset > 0) /* the part already sent, the rest is digested on its way */
+                digestLocalPart(digest, in, offset);
+            boolean isStored = client.storeFile(dstFilePath, in, offset, bufferPool.getBufferSize(), 
+                                                offset == 0 && isDeflateWanted(srcFile.getName()), digest, transfer);
+            if(!isStored)
+                throw getReplyFailure(client, "Cannot upload file to remote location as: " + dstFilePath);
+            if(digest != null)
+                verifyTransfer(client, dstFilePath, digest);
+            isDone = true;
+        } catch(FTPChecksum.MismatchException e) { /* not left for a resume to take as complete */
+            if(!client.deleteFile(dstFilePath))
+                e.addSuppressed(getReplyFailure(client, "Cannot delete mismatching remote file: " + dstFilePath));
+            throw e;
+        } finally {
+            transfer.finish(isDone);
+            listingCache.invalidateParent(dstFilePath);
+        }
+    }
+    
+    /* The checksum to verify the transferred files with, null if not asked to */
+    private FTPChecksum getVerifyChecksum(final TransferOptions options) throws IOException {
+        if(!options.isVerifyEnabled())
+            return null;
+        FTPChecksum checksum = FTPChecksum.select(serverFeatures);
+        if(checksum == null)
+            throw new IOException(NO_CHECKSUM_MESSAGE);
+        return checksum;
+    }
+    
+    private void digestLocalPart(final FTPChecksum.Digest digest, final FileChannel channel, final long length) throws IOException {
+        ByteBuffer buffer = bufferPool.borrow();
+        try {
+            digest.update(channel, length, buffer);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+    
+    /**
+     * Compares the digest taken along the transfer with the checksum the server 
+     * has of the file.
+     * @throws FTPChecksum.MismatchException If they differ.
+     */
+    private void verifyTransfer(final FTPSessionClient session, final String remotePath, final FTPChecksum.Digest digest) throws IOException {
+        String remoteChecksum = verifyChecksum.getRemote(session, remotePath);
+        String localChecksum = digest.getHex();
+        if(!remoteChecksum.equals(localChecksum))
+            throw new FTPChecksum.MismatchException("Checksum mismatch by " + verifyChecksum + ": " + localChecksum + " transferred, " 
+                                    + remoteChecksum + " on the server");
+        transferOptions.getProgress().verified();
+    }
+    
+    /**
+     * <p>Copies from the source path recursively to the destination path.</p>
+     * @param srcPathList Has to be absolute.
+     * @param dstPath Has to be absolute.
+     * @return The result, filled with the remote source paths.
+     * */
+    private OperationResult fetch(final List<String> srcPathList, final String dstPath, final boolean copyOnRemote, 
+                                  final TransferOptions options, final OperationResult result) throws IOException {
+        Path cwdFile = Paths.get(currentWorkingDirectory);
+        Map<String,FTPFile> mapSrcFiles = new LinkedHashMap<>();
+        for(String path: srcPathList) {
+            String fullPath = cwdFile.resolve(path).normalize().toString();
+            FTPFile file = getFile(fullPath);
+            if(file == null)
+                throw new IOException("Non-existent source path: " + path);
+            mapSrcFiles.put(fullPath, file);
+        }
+        
+        String dstFullPath;
+        if(copyOnRemote) { 
+            dstFullPath = cwdFile.resolve(dstPath).normalize().toString();
+            FTPFile dstFile = getFile(dstFullPath);
+            if(dstFile == null)
+                throw new IOException("Non-existent destination path: " + dstPath);
+            if(!dstFile.isDirectory())
+                throw new IOException("Destination path not a directory: " + dstPath);
+        } else {
+            dstFullPath = dstPath;      
+            File fetchDir = new File(dstPath);
+            if(!fetchDir.exists())
+                throw new IOException("Non-existent fetch location: " + fetchDir.getPath());
+            if(!fetchDir.isDirectory())
+                throw new IOException("Fetch location not a directory: " + fetchDir.getPath());
+        }
+        FTPChecksum checksum = copyOnRemote ? null : getVerifyChecksum(options);
+        if(checksum != null && options.getSegments() > 1)
+            throw new IOException("Cannot verify files downloaded in segments, their ranges arrive out of order");
+        
+        operationResult = result;
+        ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+        transferOptions = options;
+        verifyChecksum = checksum;
+        destinationNames = new FTPDestinationNames(dirPath -> listDirectory(dirPath).files);
+        
+        if(!copyOnRemote && (options.getParallelism() > 1 || options.getSegments() > 1)) {
+            fetchInParallel(mapSrcFiles, dstFullPath);
+            return result;
+        }
+        
+        if(copyOnRemote) /* files are read on the primary session and stored on this one */
+            copySession = sessionPool.borrowSession();
+        try {
+            for(Map.Entry<String,FTPFile> entry: mapSrcFiles.entrySet()) {
+                String srcPath = entry.getKey();
+                FTPFile srcFile = entry.getValue();
+                if(copyOnRemote) {
+                    if(dstFullPath.startsWith(srcPath))
+                        throw new IOException("Destination path is a subpath of the source path: " + srcPath);
+                    fetchRecursively(getParentPath(srcPath), srcFile, getValidNameForPasting(srcFile.getName(), srcFile.isDirectory(), dstFullPath), true);
+                } else 
+                    fetchRecursively(getParentPath(srcPath), srcFile, dstFullPath, false);
+            }
+            options.getProgress().walkDone();
+        } finally {
+            if(copySession != null) {
+                sessionPool.returnSession(copySession);
+                copySession = null;
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * @return Full path, including parent path and new file name
+     */
+    private String getValidNameForPasting(final String srcFileName, final boolean isSrcDirectory, final String dstParentPath) throws IOException {
+        /* Renames dst file name if already present in dst path */
+        return destinationNames.reserve(dstParentPath, srcFileName, isSrcDirectory);
+    }
+
+    public OperationResult move(final List<String> srcPathList, final String dstPath) throws IOException {
+        return move(srcPathList, dstPath, new OperationResult());
+    }
+    
+    /**
+     * @param result Records the source paths.
+     */
+    public OperationResult move(final List<String> srcPathList, final String dstPath, final OperationResult result) throws IOException {
+        ensureConnectivity();
+        
+        Path cwdFile = Paths.get(currentWorkingDirectory);
+        String newDstFullPath = cwdFile.resolve(dstPath).normalize().toString();
+        if(getFile(newDstFullPath) == null)
+            throw new IOException("Non-existent destination path: " + dstPath);
+        
+        Map<String,FTPFile> mapSrc = new LinkedHashMap<>();
+        for(String path: srcPathList) {
+            String fullPath = cwdFile.resolve(path).normalize().toString();
+            FTPFile file = getFile(fullPath);
+            if(file == null)
+                throw new IOException("Non-existent root path: " + path);
+            mapSrc.put(fullPath, file);
+        }
+        
+        operationResult = result;
+        for(Map.Entry<String,FTPFile> entry: mapSrc.entrySet()) {
+            try {
+                if(!renameRemoteFile(entry.getKey(), newDstFullPath))
+                    throw getReplyFailure(ftpClient, "Cannot move to " + newDstFullPath);
+                recordSucceeded(entry.getKey(), entry.getValue());
+            } catch(Exception e) {
+                recordFailed(entry.getKey(), entry.getValue(), e);
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * @param dstPath Has to be absolute
+     * */
+    private void fetchRecursively(final String srcParentPath, final FTPFile srcFile, final String dstPath, final boolean copyOnRemote) throws IOException {
+        fetchFile(srcParentPath, srcFile, dstPath, copyOnRemote);
+        if(srcFile.isDirectory()) {
+            String newSrcParentPath = srcParentPath+"/"+srcFile.getName();
+            /* local destinations are the parent directory, remote ones the full path */
+            for(FTPFile file: listFiles(ftpClient, newSrcParentPath))
+                fetchRecursively(newSrcParentPath, file, dstPath+"/"+(copyOnRemote ? file : srcFile).getName(), copyOnRemote);
+        }
+    }
+    
+    /**
+     * Walks the source trees on the primary session, creating the local directories 
+     * on the way, while the workers download the files over pooled sessions.
+     * Large files are split in ranges downloaded by as many workers, so there 
+     * are at least as many workers as ranges per file.
+     * @param dstDirPath Local directory to place the fetched files in.
+     */
+    private void fetchInParallel(final Map<String,FTPFile> mapSrcFiles, final String dstDirPath) throws IOException {
+        final int parallelism = Math.max(transferOptions.getParallelism(), transferOptions.getSegments());
+        FTPWorkerGroup<FetchItem> workers = new FTPWorkerGroup<>(
+                "ftp-get", sessionPool, parallelism, parallelism*QUEUED_ITEMS_PER_WORKER, null,
+                new FTPWorkerGroup.Worker<FetchItem>() {
+                    @Override
+                    public void process(final FTPSessionClient session, final FetchItem item) throws IOException {
+                        if(item.segmentedFetch != null) {
+                            retrieveSegment(session, item);
+                            finishSegment(session, item, null);
+                            return;
+                        }
+                        retrieveToLocalFile(session, item.srcFilePath, item.srcFile, item.dstFile);
+                        recordSucceeded(item.srcFilePath, item.srcFile);
+                    }
+
+                    @Override
+                    public void failed(final FetchItem item, final Exception e) {
+                        if(item.segmentedFetch != null)
+                            finishSegment(null, item, e == null ? new IOException("Range not fetched") : e);
+                        else
+                            recordFailed(item.srcFilePath, item.srcFile, e);
+                    }
+                });
+        try {
+            for(Map.Entry<String,FTPFile> entry: mapSrcFiles.entrySet())
+                walkForFetch(entry.getKey(), entry.getValue(), new File(dstDirPath), workers);
+            transferOptions.getProgress().walkDone();
+        } finally {
+            workers.finish();
+        }
+    }
+    
+    private void walkForFetch(final String srcFilePath, final FTPFile srcFile, final File dstDir, final FTPWorkerGroup<FetchItem> workers) throws IOException {
+        File dstFile = new File(dstDir, srcFile.getName());
+        if(!srcFile.isDirectory()) {
+            transferOptions.getProgress().walked(srcFile.getSize());
+            long offset = getResumeOffset(srcFile, dstFile);
+            int segmentCount = getSegmentCount(srcFile, offset);
+            if(segmentCount < 2) {
+                workers.submit(new FetchItem(srcFilePath, srcFile, dstFile));
+                return;
+            }
+            
+            SegmentedFetch segmentedFetch;
+            File partFile = new File(dstDir, srcFile.getName() + PART_FILE_SUFFIX);
+            try {
+                if(offset > 0) /* continued as the part file, so a killed download leaves no local file to resume */
+                    Files.move(dstFile.toPath(), partFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                segmentedFetch = startSegmentedFetch(srcFilePath, srcFile, partFile, offset, segmentCount);
+            } catch(IOException e) {
+                recordFailed(srcFilePath, srcFile, e);
+                return;
+            }
+            int segment = 0;
+            try {
+                for(; segment<segmentCount; segment++)
+                    workers.submit(new FetchItem(srcFilePath, srcFile, dstFile, segmentedFetch, segment));
+            } catch(IOException|RuntimeException e) { /* the ranges not queued are failed, so the last one closes the file */
+                for(; segment<segmentCount; segment++)
+                    finishSegment(null, new FetchItem(srcFilePath, srcFile, dstFile, segmentedFetch, segment), e);
+                throw e;
+            }
+            return;
+        }
+        
+        if(!makeLocalDirectory(dstFile)) {
+            recordFailed(srcFilePath, srcFile, new IOException("Cannot make local directory: " + dstFile.getPath()));
+            return; /* nothing can be placed under it */
+        }
+        recordSucceeded(srcFilePath, srcFile);
+        for(FTPFile file: listFiles(ftpClient, srcFilePath))
+            walkForFetch(srcFilePath + "/" + file.getName(), file, dstFile, workers);
+    }
+    
+    /**
+     * @return Size of the partial local file to continue from when resuming, 0 
+     * to download it whole, or its full size if it is complete already.
+     */
+    private long getResumeOffset(final FTPFile srcFile, final File dstFile) {
+        if(!transferOptions.isResumeEnabled() || !dstFile.isFile() || dstFile.length() > srcFile.getSize())
+            return 0L;
+        return dstFile.length();
+    }
+    
+    /* Ranges the rest of the file is split in, 1 if it is not worth splitting */
+    private int getSegmentCount(final FTPFile srcFile, final long offset) {
+        if(transferOptions.getSegments() < 2 || serverFeatures == null || !serverFeatures.has(FTPServerFeatures.REST))
+            return 1;
+        long rangeCount = (srcFile.getSize() - offset) / MIN_SEGMENT_SIZE;
+        return (int)Math.max(1L, Math.min(transferOptions.getSegments(), rangeCount));
+    }
+    
+    /* Opens the part file, extended to the full size if preallocating, then starts the transfer of the whole remaining size */
+    private SegmentedFetch startSegmentedFetch(final String srcFilePath, final FTPFile srcFile, final File partFile, 
+                                               final long offset, final int segmentCount) throws IOException {
+        FileChannel out = offset > 0 ? 
+                FileChannel.open(partFile.toPath(), StandardOpenOption.WRITE) : 
+                FileChannel.open(partFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        if(isPreallocationEnabled) {
+            try {
+                out.write(ByteBuffer.allocate(1), srcFile.getSize()-1); /* the last byte extends the file, the rest is overwritten */
+            } catch(IOException e) {
+                out.close();
+                throw e;
+            }
+        }
+        TransferProgress.FileTransfer transfer = transferOptions.getProgress().start(srcFilePath, srcFile.getSize(), offset);
+        return new SegmentedFetch(partFile, out, transfer, offset, srcFile.getSize(), segmentCount);
+    }
+    
+    private void retrieveSegment(final FTPSessionClient session, final FetchItem item) throws IOException {
+        SegmentedFetch fetch = item.segmentedFetch;
+        if(fetch.hasFailed())
+            throw new IOException("Range skipped, another range of the file failed");
+        
+        long start = fetch.starts[item.segment], end = fetch.starts[item.segment+1];
+        ByteBuffer buffer = bufferPool.borrow();
+        try {
+            if(!session.retrieveRange(item.srcFilePath, fetch.out, start, end - start, buffer, fetch.transfer))
+                throw getReplyFailure(session, "Cannot fetch range " + start + "-" + end + " of remote file: " + item.srcFilePath);
+        } finally {
+            session.setRestartOffset(0L); /* in case the command was never sent */
+            bufferPool.release(buffer);
+        }
+    }
+    
+    /**
+     * Once all the ranges of the file are done, checks that the remote file kept 
+     * the size it was split by, closes the part file and renames it to the local 
+     * file. A failed part file is cut back to its leading ranges which are all in, 
+     * and renamed as well for a resume to continue from. The part file of a killed 
+     * download is never renamed, as its ranges are all partial.
+     * @param session Of the range just fetched, null if it failed.
+     * @param e Null if the range was fetched.
+     */
+    private void finishSegment(final FTPSessionClient session, final FetchItem item, final Exception e) {
+        SegmentedFetch fetch = item.segmentedFetch;
+        synchronized(fetch) {
+            if(e == null)
+                fetch.isDone[item.segment] = true;
+            else if(fetch.failure == null)
+                fetch.failure = e;
+            if(--fetch.pendingCount > 0)
+                return;
+        }
+        
+        Exception failure = fetch.failure;
+        long completedEnd = fetch.getCompletedEnd();
+        if(failure == null) {
+            try {
+                if(serverFeatures.has(FTPServerFeatures.SIZE) && FTPReply.isPositiveCompletion(session.sendCommand("SIZE", item.srcFilePath))) {
+                    long size = Long.parseLong(session.getReplyString().substring(4).trim());
+                    if(size != item.srcFile.getSize()) {
+                        failure = new IOException("Remote file changed while downloading, from " + item.srcFile.getSize() + " to " + size + " bytes");
+                        completedEnd = 0L; /* none of it can be trusted */
+                    }
+                }
+            } catch(IOException|IndexOutOfBoundsException|NumberFormatException ex) { /* nothing to check against */
+            }
+        }
+        try {
+            if(failure != null)
+                fetch.out.truncate(completedEnd);
+            fetch.out.close();
+            if(failure == null || completedEnd > 0L)
+                Files.move(fetch.partFile.toPath(), item.dstFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            else
+                Files.delete(fetch.partFile.toPath());
+        } catch(IOException ex) {
+            if(failure == null)
+                failure = ex;
+        }
+        
+        fetch.transfer.finish(failure == null);
+        if(failure == null)
+            recordSucceeded(item.srcFilePath, item.srcFile);
+        else
+            recordFailed(item.srcFilePath, item.srcFile, failure);
+    }
+    
+    /**
+     * Writes through a file channel and a pooled direct buffer. When resuming, 
+     * continues a partial local file from its current size using a restart 
+     * offset (REST) and skips it if already complete.
+     */
+    private void retrieveToLocalFile(final FTPSessionClient client, final String srcFilePath, final FTPFile srcFile, final File dstFile) throws IOException {
+        long offset = getResumeOffset(srcFile, dstFile);
+        if(transferOptions.isResumeEnabled() && dstFile.isFile() && offset == srcFile.getSize()) {
+            transferOptions.getProgress().skipped(srcFile.getSize());
+            return; /* already complete */
+        }
+        
+        TransferProgress.FileTransfer transfer = transferOptions.getProgress().start(srcFilePath, srcFile.getSize(), offset);
+        FTPChecksum.Digest digest = verifyChecksum == null ? null : verifyChecksum.newDigest();
+        boolean isDone = false; /* default value set */
+        ByteBuffer buffer = bufferPool.borrow();
+        try (FileChannel out = offset > 0 ? 
+                FileChannel.open(dstFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE) : 
+                FileChannel.open(dstFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if(digest != null && offset > 0) /* the part already received, the rest is digested on its way */
+                digestLocalPart(digest, out, offset);
+            boolean isPreallocated = isPreallocationEnabled && srcFile.getSize() > offset;
+            if(isPreallocated) /* the last byte extends the file, the rest is overwritten */
+                out.write(ByteBuffer.allocate(1), srcFile.getSize()-1);
+            out.position(offset);
+            try {
+                client.setRestartOffset(offset);
+                boolean isRetrieved = client.retrieveFile(srcFilePath, out, buffer, offset == 0 && isDeflateWanted(srcFile.getName()), 
+                                                          digest, transfer);
+                if(!isRetrieved)
+                    throw getReplyFailure(client, "Cannot fetch remote file: " + srcFilePath);
+            } finally {
+                if(isPreallocated) /* to what was received, for a resume to continue from */
+                    out.truncate(out.position());
+            }
+            if(digest != null)
+                verifyTransfer(client, srcFilePath, digest);
+            isDone = true;
+        } catch(FTPChecksum.MismatchException e) { /* not left for a resume to take as complete */
+            if(!dstFile.delete())
+                e.addSuppressed(new IOException("Cannot delete mismatching local file: " + dstFile.getPath()));
+            throw e;
+        } finally {
+            client.setRestartOffset(0L); /* in case the command was never sent */
+            bufferPool.release(buffer);
+            transfer.finish(isDone);
+        }
+    }
+    
+    /* Whether the file should go deflated (MODE Z), as far as the server takes it */
+    private boolean isDeflateWanted(final String fileName) {
+        switch(compression) {
+            case ON:
+                return true;
+            case AUTO:
+                int idx = fileName.lastIndexOf('.');
+                return serverFeatures != null && serverFeatures.hasDeflateMode() && 
+                       (idx == -1 || !COMPRESSED_EXTENSIONS.contains(fileName.substring(idx+1).toLowerCase(Locale.ROOT)));
+            default:
+                return false;
+        }
+    }
+    
+    /* Existing directories are reused when resuming */
+    private boolean makeLocalDirectory(final File dir) {
+        return dir.mkdir() || (transferOptions.isResumeEnabled() && dir.isDirectory());
+    }
+    
+    /**
+     * Makes the local directory a mirror of the remote one, transferring only the
+     * files which are new or changed. See {@link #syncToRemote}.
+     * @param result Records the remote paths transferred or made, and the local 
+     * paths deleted.
+     */
+    public OperationResult syncToLocal(final String remoteDirPath, final String localDirPath, final TransferOptions options, 
+                                       final OperationResult result) throws IOException {
+        return sync(remoteDirPath, localDirPath, false, options, result);
+    }
+    
+    /**
+     * Makes the remote directory a mirror of the local one, transferring only the
+     * files which are new or changed. The destination directory is made if need be.
+     * 
+     * <p>The remote tree is walked once, listing ahead concurrently over the 
+     * pooled sessions; each directory is compared to its local counterpart as 
+     * soon as all its entries are in, and the files to transfer are queued to 
+     * the workers right away. A file is transferred if its size differs, or 
+     * its modification time: downloaded files take the remote time, and so do 
+     * uploaded ones where the server has MFMT, then any difference counts, else 
+     * only a source newer than the destination. With checksums enabled, files 
+     * of the same size are compared by checksum instead.</p>
+     * 
+     * <p>Listings which give remote times to the minute or the day only (LIST), 
+     * in the time zone of the server, are compared within that precision when 
+     * downloading. When uploading, the exact time is looked up (MDTM) by the 
+     * worker if the server has it, else compared within that precision as well. 
+     * Local directories which are links are not followed when uploading.</p>
+     * 
+     * <p>With deletion enabled, entries of the destination missing from the 
+     * source are deleted, and entries of the other type replaced.</p>
+     * @param result Records the local paths transferred or made, and the remote 
+     * paths deleted.
+     */
+    public OperationResult syncToRemote(final String localDirPath, final String remoteDirPath, final TransferOptions options, 
+                                        final OperationResult result) throws IOException {
+        return sync(remoteDirPath, localDirPath, true, options, result);
+    }
+    
+    private OperationResult sync(final String requestedRemotePath, final String requestedLocalPath, final boolean isUpload, 
+                                 final TransferOptions options, final OperationResult result) throws IOException {
+        ensureConnectivity();
+        String remoteRootPath = Paths.get(currentWorkingDirectory).resolve(requestedRemotePath).normalize().toString();
+        File localRoot = Paths.get(System.getProperty("user.dir")).resolve(requestedLocalPath).normalize().toFile();
+        FTPFile remoteRoot = getFile(remoteRootPath);
+        if(isUpload ? !localRoot.isDirectory() : remoteRoot == null || !remoteRoot.isDirectory())
+            throw new IOException("Source path not a directory: " + (isUpload ? requestedLocalPath : requestedRemotePath));
+        if(isUpload ? remoteRoot != null && !remoteRoot.isDirectory() : localRoot.exists() && !localRoot.isDirectory())
+            throw new IOException("Destination path not a directory: " + (isUpload ? requestedRemotePath : requestedLocalPath));
+        FTPChecksum checksum = options.isChecksumEnabled() ? FTPChecksum.select(serverFeatures) : null;
+        if(options.isChecksumEnabled() && checksum == null)
+            throw new IOException(NO_CHECKSUM_MESSAGE);
+        FTPChecksum transferChecksum = getVerifyChecksum(options);
+        if(sessionPool.getMaxSize() < 2)
+            throw new IOException("Sync needs at least 2 sessions, one of them for the listings");
+        
+        if(remoteRoot == null) {
+            makeDirectories(remoteRootPath);
+            remoteRoot = new FTPFile();
+            remoteRoot.setName(Paths.get(remoteRootPath).getFileName().toString());
+            remoteRoot.setType(FTPFile.DIRECTORY_TYPE);
+        }
+        if(!localRoot.isDirectory() && !localRoot.mkdirs())
+            throw new IOException("Cannot make local directory: " + localRoot.getPath());
+        
+        operationResult = result;
+        ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+        transferOptions = options;
+        verifyChecksum = transferChecksum;
+        /* the workers keep their sessions, the listings need one left */
+        final int parallelism = Math.min(options.getParallelism(), sessionPool.getMaxSize() - 1);
+        FTPWorkerGroup<SyncItem> workers = new FTPWorkerGroup<>(
+                "ftp-sync", sessionPool, parallelism, parallelism*QUEUED_ITEMS_PER_WORKER, null,
+                new FTPWorkerGroup.Worker<SyncItem>() {
+                    @Override
+                    public void process(final FTPSessionClient session, final SyncItem item) throws IOException {
+                        syncFile(session, item, isUpload, checksum);
+                    }
+
+                    @Override
+                    public void failed(final SyncItem item, final Exception e) {
+                        if(isUpload)
+                            recordFailed(item.localFile, e);
+                        else
+                            recordFailed(item.remotePath, item.remoteFile, e);
+                    }
+                });
+        try {
+            FTPTreeWalker walker = new FTPTreeWalker(sessionPool, this::listFiles);
+            walker.visit(remoteRootPath, remoteRoot, -1, new SyncWalk(remoteRootPath, localRoot, isUpload, checksum != null, workers));
+            options.getProgress().walkDone();
+        } finally {
+            workers.finish();
+        }
+        return result;
+    }
+    
+    /*
+     * Compares each remote directory of the walk with its local counterpart, once 
+     * all its entries have been visited. Local directories are made when visited, 
+     * so they are there before anything is downloaded into them.
+     */
+    private final class SyncWalk implements FTPTreeVisitor {
+        private final String remoteRootPath;
+        private final File localRoot;
+        private final boolean isUpload;
+        private final boolean isChecksumEnabled;
+        private final FTPWorkerGroup<SyncItem> workers;
+        private final Deque<Map<String,FTPFile>> listings = new ArrayDeque<>(); /* of the directories on the current path */
+
+        SyncWalk(final String remoteRootPath, final File localRoot, final boolean isUpload, final boolean isChecksumEnabled, 
+                 final FTPWorkerGroup<SyncItem> workers) {
+            this.remoteRootPath = remoteRootPath;
+            this.localRoot = localRoot;
+            this.isUpload = isUpload;
+            this.isChecksumEnabled = isChecksumEnabled;
+            this.workers = workers;
+        }
+
+        @Override
+        public void visit(final int depth, final String path, final FTPFile file) throws IOException {
+            if(depth > 0)
+                listings.peek().put(file.getName(), file);
+            if(!file.isDirectory())
+                return;
+            listings.push(new LinkedHashMap<>());
+            if(!isUpload && depth > 0)
+                makeLocalMirrorDirectory(path, file, getLocalFile(path));
+        }
+
+        @Override
+        public void leave(final int depth, final String path, final FTPFile dir) throws IOException {
+            Map<String,FTPFile> remoteEntries = listings.pop();
+            File localDir = depth == 0 ? localRoot : getLocalFile(path);
+            if(!localDir.isDirectory())
+                return; /* remote only when uploading, left to the parent; else not made, already failed */
+            if(isUpload && depth > 0 && Files.isSymbolicLink(localDir.toPath()))
+                return; /* not followed */
+            File[] localFiles = localDir.listFiles();
+            if(localFiles == null) {
+                IOException e = new IOException("Cannot list local directory: " + localDir.getPath());
+                if(isUpload)
+                    recordFailed(localDir, e);
+                else
+                    recordFailed(path, dir, e);
+                return;
+            }
+            
+            String parentPath = path.endsWith("/") ? path : path + "/";
+            Map<String,File> localEntries = new LinkedHashMap<>();
+            for(File file: localFiles)
+                localEntries.put(file.getName(), file);
+            if(isUpload)
+                syncToRemoteEntries(parentPath, remoteEntries, localEntries);
+            else
+                syncToLocalEntries(parentPath, remoteEntries, localDir, localEntries);
+        }
+
+        private void syncToLocalEntries(final String parentPath, final Map<String,FTPFile> remoteEntries, 
+                                        final File localDir, final Map<String,File> localEntries) throws IOException {
+            for(FTPFile remoteFile: remoteEntries.values()) {
+                if(remoteFile.isDirectory())
+                    continue; /* made when visited */
+                String remotePath = parentPath + remoteFile.getName();
+                File localFile = localEntries.get(remoteFile.getName());
+                if(localFile != null && localFile.isDirectory()) {
+                    if(!transferOptions.isDeleteEnabled()) {
+                        recordFailed(remotePath, remoteFile, new IOException("A local directory is in the way: " + localFile.getPath()));
+                        continue;
+                    }
+                    if(!deleteLocalTree(localFile))
+                        continue;
+                }
+                submitIfChanged(remotePath, remoteFile, localFile == null ? new File(localDir, remoteFile.getName()) : localFile);
+            }
+            if(transferOptions.isDeleteEnabled())
+                for(File localFile: localEntries.values())
+                    if(!remoteEntries.containsKey(localFile.getName()))
+                        deleteLocalTree(localFile);
+        }
+
+        private void syncToRemoteEntries(final String parentPath, final Map<String,FTPFile> remoteEntries, 
+                                         final Map<String,File> localEntries) throws IOException {
+            for(File localFile: localEntries.values()) {
+                if(isLinkedDirectory(localFile))
+                    continue; /* not followed, and what the server has under its name is left as is */
+                String remotePath = parentPath + localFile.getName();
+                FTPFile remoteFile = remoteEntries.get(localFile.getName());
+                if(remoteFile != null && remoteFile.isDirectory() != localFile.isDirectory()) {
+                    if(!transferOptions.isDeleteEnabled()) {
+                        recordFailed(localFile, new IOException("A remote " + (remoteFile.isDirectory() ? "directory" : "file") + " is in the way: " + remotePath));
+                        continue;
+                    }
+                    if(!deleteRemoteEntry(remotePath, remoteFile))
+                        continue;
+                    remoteFile = null;
+                }
+                if(!localFile.isDirectory())
+                    submitIfChanged(remotePath, remoteFile, localFile);
+                else if(remoteFile == null)
+                    uploadNewTree(localFile, remotePath);
+                /* else compared when left */
+            }
+            if(transferOptions.isDeleteEnabled())
+                for(Map.Entry<String,FTPFile> entry: remoteEntries.entrySet())
+                    if(!localEntries.containsKey(entry.getKey()))
+                        deleteRemoteEntry(parentPath + entry.getKey(), entry.getValue());
+        }
+
+        /* A local file in the way is replaced if deleting, the directory is made if missing */
+        private void makeLocalMirrorDirectory(final String path, final FTPFile dir, final File localDir) {
+            if(localDir.exists() && !localDir.isDirectory()) {
+                if(!transferOptions.isDeleteEnabled()) {
+                    recordFailed(path, dir, new IOException("A local file is in the way: " + localDir.getPath()));
+                    return;
+                }
+                if(!deleteLocalTree(localDir))
+                    return;
+            }
+            if(localDir.isDirectory())
+                return;
+            if(localDir.mkdir())
+                recordSucceeded(path, dir);
+            else
+                recordFailed(path, dir, new IOException("Cannot make local directory: " + localDir.getPath()));
+        }
+
+        /* Nothing is compared under a directory missing on the server */
+        private void uploadNewTree(final File localDir, final String remotePath) throws IOException {
+            if(!makeRemoteDirectory(ftpClient, remotePath)) {
+                recordFailed(localDir, getReplyFailure(ftpClient, "Cannot create remote directory: " + remotePath));
+                return;
+            }
+            recordSucceeded(localDir);
+            File[] files = localDir.listFiles();
+            if(files == null) {
+                recordFailed(localDir, new IOException("Cannot list local directory: " + localDir.getPath()));
+                return;
+            }
+            for(File file: files) {
+                if(isLinkedDirectory(file))
+                    continue; /* not followed */
+                if(file.isDirectory())
+                    uploadNewTree(file, remotePath + "/" + file.getName());
+                else
+                    submitIfChanged(remotePath + "/" + file.getName(), null, file);
+            }
+        }
+
+        private void submitIfChanged(final String remotePath, final FTPFile remoteFile, final File localFile) throws IOException {
+            long srcSize = isUpload ? localFile.length() : remoteFile.getSize();
+            transferOptions.getProgress().walked(srcSize);
+            boolean isPresent = isUpload ? remoteFile != null : localFile.isFile();
+            if(!isPresent || remoteFile.getSize() != localFile.length()) {
+                workers.submit(new SyncItem(remotePath, remoteFile, localFile, false));
+                return;
+            }
+            if(isChecksumEnabled) {
+                workers.submit(new SyncItem(remotePath, remoteFile, localFile, true));
+                return;
+            }
+            
+            long tolerance = getTimeTolerance(remoteFile);
+            if(isUpload && tolerance > SYNC_TIME_TOLERANCE && serverFeatures.has(FTPServerFeatures.MDTM)) {
+                workers.submit(new SyncItem(remotePath, remoteFile, localFile, false, true));
+                return;
+            }
+            if(isTimeChanged(getRemoteTime(remoteFile), localFile.lastModified(), tolerance, isUpload))
+                workers.submit(new SyncItem(remotePath, remoteFile, localFile, false));
+            else
+                transferOptions.getProgress().skipped(srcSize);
+        }
+
+        private boolean isLinkedDirectory(final File localFile) {
+            return isUpload && localFile.isDirectory() && Files.isSymbolicLink(localFile.toPath());
+        }
+
+        private File getLocalFile(final String remotePath) {
+            String rootPrefix = remoteRootPath.endsWith("/") ? remoteRootPath : remoteRootPath + "/";
+            return new File(localRoot, remotePath.substring(rootPrefix.length()));
+        }
+    }
+    
+    /* Transfers the file of a sync, unless the checksums tell it is unchanged, then gives it the source time */
+    private void syncFile(final FTPSessionClient session, final SyncItem item, final boolean isUpload, 
+                          final FTPChecksum checksum) throws IOException {
+        if(item.isChecksumNeeded && isSameChecksum(session, item, checksum)) {
+            transferOptions.getProgress().skipped(item.localFile.length());
+            preserveTime(session, item, isUpload); /* compared by time again without checksums */
+            return;
+        }
+        if(item.isTimeLookUpNeeded) {
+            FTPFile remoteFile = session.mdtmFile(item.remotePath);
+            if(!isTimeChanged(getRemoteTime(remoteFile), item.localFile.lastModified(), SYNC_TIME_TOLERANCE, isUpload)) {
+                transferOptions.getProgress().skipped(item.localFile.length());
+                return;
+            }
+        }
+        if(isUpload) {
+            storeFromLocalFile(session, item.localFile, item.remotePath, null);
+            preserveTime(session, item, isUpload);
+            recordSucceeded(item.localFile);
+        } else {
+            retrieveToLocalFile(session, item.remotePath, item.remoteFile, item.localFile);
+            preserveTime(session, item, isUpload);
+            recordSucceeded(item.remotePath, item.remoteFile);
+        }
+    }
+    
+    private boolean isSameChecksum(final FTPSessionClient session, final SyncItem item, final FTPChecksum checksum) throws IOException {
+        String remoteChecksum = checksum.getRemote(session, item.remotePath);
+        ByteBuffer buffer = bufferPool.borrow();
+        try {
+            return remoteChecksum.equals(checksum.getLocal(item.localFile, buffer));
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+    
+    /* Downloads take the remote time, uploads the local one where the server has MFMT */
+    private void preserveTime(final FTPSessionClient session, final SyncItem item, final boolean isUpload) throws IOException {
+        if(!isUpload) {
+            long remoteTime = getRemoteTime(item.remoteFile);
+            if(remoteTime > 0 && !item.localFile.setLastModified(remoteTime))
+                throw new IOException("Cannot set the modification time of local file: " + item.localFile.getPath());
+        } else if(serverFeatures.has(FTPServerFeatures.MFMT)) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss", Locale.ROOT);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            if(!session.setModificationTime(item.remotePath, format.format(new Date(item.localFile.lastModified()))))
+                throw getReplyFailure(session, "Cannot set the modification time of remote file: " + item.remotePath);
+            listingCache.invalidateParent(item.remotePath);
+        }
+    }
+    
+    /**
+     * Whether the source is to be transferred again by its modification time: 
+     * any difference counts where the destination took the source time, else 
+     * only a source newer than the destination. Unknown times leave it to the size.
+     */
+    private boolean isTimeChanged(final long remoteTime, final long localTime, final long tolerance, final boolean isUpload) {
+        if(remoteTime <= 0 || localTime <= 0)
+            return false;
+        boolean isTimePreserved = !isUpload || serverFeatures.has(FTPServerFeatures.MFMT);
+        long difference = isUpload ? localTime - remoteTime : remoteTime - localTime;
+        return (isTimePreserved ? Math.abs(difference) : difference) >= tolerance;
+    }
+    
+    /* @return In ms, how far apart times within the precision of the listed remote time may be */
+    private static long getTimeTolerance(final FTPFile file) {
+        Calendar time = file.getTimestamp();
+        if(time == null)
+            return SYNC_TIME_TOLERANCE;
+        if(!time.isSet(Calendar.SECOND)) /* cleared by the LIST parser for times to the minute */
+            return (time.isSet(Calendar.MINUTE) ? MINUTE : DAY) + SYNC_TIME_TOLERANCE;
+        if(time.get(Calendar.HOUR_OF_DAY) == 0 && time.get(Calendar.MINUTE) == 0 
+                && time.get(Calendar.SECOND) == 0 && time.get(Calendar.MILLISECOND) == 0)
+            return DAY + SYNC_TIME_TOLERANCE; /* most likely a date alone, as LIST gives for older files */
+        return SYNC_TIME_TOLERANCE;
+    }
+    
+    /* @return In ms, 0 if unknown */
+    private static long getRemoteTime(final FTPFile file) {
+        return file == null || file.getTimestamp() == null ? 0L : file.getTimestamp().getTimeInMillis();
+    }
+    
+    /* A local entry not in the source tree, everything under it first; links are deleted, not followed */
+    private boolean deleteLocalTree(final File file) {
+        boolean isEmptied = true; /* default value set */
+        File[] files = Files.isSymbolicLink(file.toPath()) ? null : file.listFiles();
+        if(files != null)
+            for(File child: files)
+                isEmptied &= deleteLocalTree(child);
+        if(!isEmptied)
+            return false; /* failures already recorded */
+        boolean isDirectory = file.isDirectory();
+        if(!file.delete()) {
+            recordFailed(file, new IOException("Cannot delete local " + (isDirectory ? "directory" : "file")));
+            return false;
+        }
+        operationResult.succeeded(file.getPath(), isDirectory);
+        transferOptions.getProgress().deleted();
+        return true;
+    }
+    
+    /* A remote entry not in the source tree, a directory with everything under it */
+    private boolean deleteRemoteEntry(final String path, final FTPFile file) throws IOException {
+        if(file.isDirectory())
+            return newTreeRemover(transferOptions.getProgress()).remove(path, file);
+        if(!deleteRemoteFile(ftpClient, path)) {
+            recordFailed(path, file, getReplyFailure(ftpClient, "Cannot delete file"));
+            return false;
+        }
+        recordSucceeded(path, file);
+        transferOptions.getProgress().deleted();
+        return true;
+    }
+    
+    /* Result recording, may be called from the transfer workers */
+    private void recordSucceeded(final String path, final FTPFile file) {
+        operationResult.succeeded(path, file.isDirectory());
+    }
+    
+    private void recordFailed(final String path, final FTPFile file, final Exception e) {
+        if(e instanceof FTPChecksum.MismatchException)
+            operationResult.mismatched(path, OperationResult.getReason(e));
+        else
+            operationResult.failed(path, file.isDirectory(), e);
+    }
+    
+    private void recordSucceeded(final File file) {
+        operationResult.succeeded(file.getPath(), file.isDirectory());
+    }
+    
+    private void recordFailed(final File file, final Exception e) {
+        if(e instanceof FTPChecksum.MismatchException)
+            operationResult.mismatched(file.getPath(), OperationResult.getReason(e));
+        else
+            operationResult.failed(file.getPath(), file.isDirectory(), e);
+    }
+    
+    /* A refused command, with the reply of the server as the reason */
+    private static IOException getReplyFailure(final FTPClient client, final String message) {
+        String reply = client.getReplyString();
+        return new IOException(reply == null ? message : message + " (Reply: " + reply.trim() + ")");
+    }
+
+    private void fetchFile(final String srcParentPath, final FTPFile srcFile, final String dstPath, final boolean copyOnRemote) throws IOException {
+        String srcFilePath = srcParentPath+ "/" + srcFile.getName();
+        /* remote destinations are named already, only the roots may need another name */
+        String newDstFilePath = copyOnRemote ? dstPath : dstPath + "/" + srcFile.getName();
+        try {
+            if(srcFile.isDirectory()) {
+                if(copyOnRemote) {
+                    if(!makeRemoteDirectory(ftpClient, newDstFilePath))
+                        throw getReplyFailure(ftpClient, "Cannot create remote directory: " + newDstFilePath);
+                } else {
+                    if(!makeLocalDirectory(new File(newDstFilePath)))
+                        throw new IOException("Cannot make local directory: " + newDstFilePath);
+                }
+            } else {
+                transferOptions.getProgress().walked(srcFile.getSize());
+                if(copyOnRemote) /* Stream to remote dst with correct name */
+                    copyRemoteFile(ftpClient, srcFilePath, srcFile, copySession, newDstFilePath);
+                else /* Download to local file */
+                    retrieveToLocalFile(ftpClient, srcFilePath, srcFile, new File(newDstFilePath));
+            }
+            recordSucceeded(srcFilePath, srcFile);
+        } catch(Exception e) {
+            recordFailed(srcFilePath, srcFile, e);
+            if(copyOnRemote && !copySession.isConnected()) { /* replace the broken session for the next files */
+                sessionPool.invalidateSession(copySession);
+                copySession = sessionPool.borrowSession();
+            }
+        }
+    }
+    
+    /**
+     * Pipes the remote file from one session straight into another through 
+     * a bounded in-memory buffer, without touching the local disk.
+     */
+    private void copyRemoteFile(final FTPClient srcSession, final String srcFilePath, final FTPFile srcFile, 
+                                final FTPClient dstSession, final String dstFilePath) throws IOException {
+        InputStream in = srcSession.retrieveFileStream(srcFilePath);
+        if(in == null)
+            throw getReplyFailure(srcSession, "Cannot fetch remote file: " + srcFilePath);
+        
+        TransferProgress.FileTransfer transfer = transferOptions.getProgress().start(srcFilePath, srcFile.getSize(), 0L);
+        OutputStream out = null;
+        boolean isRetrieved = false, isStored = false; /* default value set */
+        try {
+            out = dstSession.storeFileStream(dstFilePath);
+            if(out != null) /* no flush per buffer */
+                Util.copyStream(in, out, bufferPool.getBufferSize(), CopyStreamEvent.UNKNOWN_STREAM_SIZE, transfer, false);
+        } finally {
+            try {
+                in.close();
+                isRetrieved = srcSession.completePendingCommand();
+                if(out != null) {
+                    out.close();
+                    isStored = dstSession.completePendingCommand();
+                }
+            } finally {
+                transfer.finish(isRetrieved && isStored);
+                listingCache.invalidateParent(dstFilePath);
+            }
+        }
+        
+        if(!isRetrieved)
+            throw getReplyFailure(srcSession, "Cannot fetch remote file: " + srcFilePath);
+        if(!isStored)
+            throw getReplyFailure(dstSession, "Cannot upload file to remote location as: " + dstFilePath);
+    }
+
+    /**
+      * Gets the FTPFile object for the specified path, if exists.
+      * @return FTPFile object if exists else null
+      * */
+    private FTPFile getFile(final String pathString) throws IOException {
+        if( pathString.equals("/") || /* ROOT_PATH */
+            pathString.equals("//") || 
+            pathString.equals("\\") || 
+            pathString.equals("\\\\") || 
+            pathString.equals("/\\")) {
+            FTPFile rootFile = new FTPFile();
+            rootFile.setName(ROOT_PATH);
+            rootFile.setType(FTPFile.DIRECTORY_TYPE);
+            return rootFile;
+        }
+        
+        final Path path = Paths.get(pathString);
+        final String parentPath = path.getParent().toString();
+        final String fileName = path.getFileName().toString();
+        
+//        int divIdx = path.lastIndexOf('/')+1;
+//        String parent = path.substring(0, divIdx);
+//        String child = path.substring(divIdx);
+        
+        FTPListingCache.Listing listing = listingCache.get(parentPath);
+        if(listing == null && serverFeatures != null 
+                && (serverFeatures.has(FTPServerFeatures.MLST) || serverFeatures.has(FTPServerFeatures.SIZE))) {
+            FTPFile file = lookUpFile(path.toString());
+            if(file != UNKNOWN_FILE)
+                return file;
+        }
+        return (listing == null ? listDirectory(parentPath) : listing).find(fileName);
+    }
+    
+    /**
+     * Looks up a single path without listing its parent directory: MLST if supported, 
+     * else SIZE (plus MDTM) if supported which only succeeds for files, and a CWD probe 
+     * for directories when SIZE replies 550.
+     * @param pathString Has to be absolute.
+     * @return FTPFile object if exists, null if not, UNKNOWN_FILE if the replies tell neither.
+     */
+    private FTPFile lookUpFile(final String pathString) throws IOException {
+        String fileName = Paths.get(pathString).getFileName().toString();
+        FTPFile file;
+        if(serverFeatures.has(FTPServerFeatures.MLST)) {
+            file = ftpClient.mlistFile(pathString);
+            if(file == null)
+                return FTPReply.isPositiveCompletion(ftpClient.getReplyCode()) ? UNKNOWN_FILE : null;
+        } else if(!serverFeatures.has(FTPServerFeatures.SIZE)) {
+            return UNKNOWN_FILE;
+        } else if(!FTPReply.isPositiveCompletion(ftpClient.sendCommand("SIZE", pathString))) {
+            /* 550 for a directory or a missing path, other refusals (e.g. in ASCII mode) tell nothing */
+            if(ftpClient.getReplyCode() != FTPReply.FILE_UNAVAILABLE 
+                    || ftpClient.getReplyString().toUpperCase(Locale.ROOT).contains("ASCII"))
+                return UNKNOWN_FILE;
+            if(!isAbsoluteCWDSupported)
+                return UNKNOWN_FILE; /* cannot probe with a single CWD */
+            if(!ftpClient.changeWorkingDirectory(pathString))
+                return null;
+            if(!restoreWorkingDirectory())
+                throw new IOException("Cannot move back to directory " + currentWorkingDirectory);
+            file = new FTPFile();
+            file.setType(FTPFile.DIRECTORY_TYPE);
+        } else {
+            long size;
+            try {
+                size = Long.parseLong(ftpClient.getReplyString().substring(4).trim());
+            } catch(IndexOutOfBoundsException|NumberFormatException e) {
+                return UNKNOWN_FILE;
+            }
+            file = serverFeatures.has(FTPServerFeatures.MDTM) ? ftpClient.mdtmFile(pathString) : null;
+            if(file == null)
+                file = new FTPFile();
+            file.setType(FTPFile.FILE_TYPE);
+            file.setSize(size);
+        }
+        file.setName(fileName); /* servers reply with the full path */
+        return file;
+    }
+    
+    /**
+     * Lists the directory with MLSD when the server supports it, else with LIST.
+     * @param dirPath Has to be absolute.
+     */
+    private FTPFile[] listFiles(final FTPSessionClient client, final String dirPath) throws IOException {
+        if(serverFeatures != null && serverFeatures.has(FTPServerFeatures.MLSD))
+            return client.mlistDirectory(dirPath);
+        return client.listFiles(dirPath);
+    }
+    
+    /**
+     * Lists the directory as {@link #listFiles(FTPSessionClient, String)} does, 
+     * failing when the server refuses to instead of returning no entries.
+     */
+    private FTPFile[] listFilesOrFail(final FTPSessionClient client, final String dirPath) throws IOException {
+        FTPFile[] files = listFiles(client, dirPath);
+        if(files.length == 0 && !FTPReply.isPositiveCompletion(client.getReplyCode()))
+            throw new IOException("Cannot list directory: " + dirPath + " (Reply code: " + client.getReplyCode() + ")");
+        return files;
+    }
+    
+    /**
+     * Lists the directory through the listing cache.
+     * @param dirPath Has to be absolute.
+     */
+    private FTPListingCache.Listing listDirectory(final String dirPath) throws IOException {
+        FTPListingCache.Listing listing = listingCache.get(dirPath);
+        if(listing == null)
+            listing = listingCache.put(dirPath, listFiles(ftpClient, dirPath));
+        return listing;
+    }
+    
+    /* Mutating operations, keeping the listing cache up to date */
+    private boolean makeRemoteDirectory(final FTPClient client, final String path) throws IOException {
+        try {
+            return client.makeDirectory(path);
+        } finally {
+            listingCache.invalidateParent(path);
+        }
+    }
+    
+    private boolean removeRemoteDirectory(final FTPClient client, final String path) throws IOException {
+        try {
+            return client.removeDirectory(path);
+        } finally {
+            listingCache.invalidateParent(path);
+            listingCache.invalidateTree(path);
+        }
+    }
+    
+    private boolean deleteRemoteFile(final FTPClient client, final String path) throws IOException {
+        try {
+            return client.deleteFile(path);
+        } finally {
+            listingCache.invalidateParent(path);
+        }
+    }
+    
+    private boolean renameRemoteFile(final String fromPath, final String toPath) throws IOException {
+        try {
+            return ftpClient.rename(fromPath, toPath);
+        } finally {
+            listingCache.invalidateParent(fromPath);
+            listingCache.invalidateTree(fromPath);
+            listingCache.invalidateParent(toPath);
+        }
+    }
+    
+    /**
+     * Count, errors and latencies of the commands sent so far over all the sessions, 
+     * per FTP verb, also published as JMX MBeans.
+     */
+    public List<String> getCommandMetrics() {
+        return commandMetrics.getReport();
+    }
+    
+    public void resetCommandMetrics() {
+        commandMetrics.reset();
+    }
+    
+    public List<String> getListingCacheStatistics() {
+        return listingCache.getStatistics();
+    }
+    
+    public void flushListingCache() {
+        listingCache.clear();
+    }
+
+    public void test() throws Exception {
+        System.out.println("ftpClient.printWorkingDirectory()=" + ftpClient.printWorkingDirectory());
+        System.out.println("currentWorkingDirectory=" + currentWorkingDirectory);
+    }
+
+    public boolean pathExists(final String path) throws IOException {
+        return callWithReconnect(() -> getFile(path) != null);
+    }
+
+    /**
+     * Main handler for delete operation. Entries are removed in post-order, 
+     * many at once over the pooled sessions.
+     * 
+     * @param rootPathList Must be an abs path of a file/dir.
+     * 
+     * @return Counts of the removed and failed entries, with the reasons of the first failures.
+     */
+    public OperationResult delete(final List<String> rootPathList) throws IOException {
+        return delete(rootPathList, new OperationResult());
+    }
+    
+    /**
+     * @param result Records the removed and failed paths.
+     */
+    public OperationResult delete(final List<String> rootPathList, final OperationResult result) throws IOException {
+        ensureConnectivity();
+        Map<String,FTPFile> mapRootFiles = getRootFilesForDelete(rootPathList);
+        
+        operationResult = result;
+        FTPTreeRemover remover = newTreeRemover(null);
+        for(Map.Entry<String,FTPFile> entry: mapRootFiles.entrySet())
+            remover.remove(entry.getKey(), entry.getValue());
+        return result;
+    }
+    
+    /**
+     * Removes over the pooled sessions, recording into the ongoing operation result.
+     * @param progress Counts the removed entries, if not null.
+     */
+    private FTPTreeRemover newTreeRemover(final TransferProgress progress) {
+        return new FTPTreeRemover(sessionPool, new FTPTreeRemover.Remover() {
+            @Override
+            public FTPFile[] listFiles(final FTPSessionClient session, final String dirPath) throws IOException {
+                return FTPHandler.this.listFiles(session, dirPath);
+            }
+
+            @Override
+            public void deleteFile(final FTPSessionClient session, final String path) throws IOException {
+                if(!deleteRemoteFile(session, path))
+                    throw getReplyFailure(session, "Cannot delete file");
+            }
+
+            @Override
+            public void removeDirectory(final FTPSessionClient session, final String path) throws IOException {
+                if(!removeRemoteDirectory(session, path))
+                    throw getReplyFailure(session, "Cannot remove directory");
+            }
+
+            @Override
+            public void succeeded(final String path, final FTPFile file) {
+                recordSucceeded(path, file);
+                if(progress != null)
+                    progress.deleted();
+            }
+
+            @Override
+            public void failed(final String path, final FTPFile file, final String reason) {
+                operationResult.failed(path, file.isDirectory(), reason);
+            }
+        });
+    }
+
+    /**
+     * Streams what {@link #delete(List)} would remove, without removing anything:
+     * files are visited and directories left in the order they would be removed.
+     * @return Number of directories and files which would be removed.
+     */
+    public long[] previewDelete(final List<String> rootPathList, final FTPTreeVisitor visitor) throws IOException {
+        ensureConnectivity();
+        Map<String,FTPFile> mapRootFiles = getRootFilesForDelete(rootPathList);
+        
+        long dirCount=0L, fileCount=0L; /* default value set */
+        for(Map.Entry<String,FTPFile> entry: mapRootFiles.entrySet()) {
+            FTPTreeWalker walker = new FTPTreeWalker(sessionPool, this::listFiles);
+            walker.visit(entry.getKey(), entry.getValue(), -1, visitor);
+            dirCount += walker.getDirCount();
+            fileCount += walker.getFileCount();
+        }
+        return new long[] { dirCount, fileCount };
+    }
+    
+    /* @return Existing roots keyed by absolute path */
+    private Map<String,FTPFile> getRootFilesForDelete(final List<String> rootPathList) throws IOException {
+        Path cwdFile = Paths.get(currentWorkingDirectory);
+        Map<String,FTPFile> mapRootFiles = new LinkedHashMap<>();
+        for(String rootPath: rootPathList) {
+            String fullRootPath = cwdFile.resolve(rootPath).normalize().toString();            
+            if(fullRootPath.equals(ROOT_PATH))
+                throw new IOException("Cannot remove root path: " + rootPath);
+            FTPFile root = getFile(fullRootPath);
+            if(root == null)
+                throw new IOException("Non-existent root path: " + rootPath);
+            mapRootFiles.put(fullRootPath, root);
+        }
+        return mapRootFiles;
+    }
+
+    public FTPFile[] getPathListing(final String pathRequested,
+                                    final boolean showDirsOnly,
+                                    final String filterArgument) throws IOException, PatternSyntaxException {
+        return callWithReconnect(() -> listPath(pathRequested, showDirsOnly, filterArgument));
+    }
+    
+    private FTPFile[] listPath(final String pathRequested,
+                               final boolean showDirsOnly,
+                               final String filterArgument) throws IOException, PatternSyntaxException {
+//        ftpClient.setListHiddenFiles(true);
+        FTPFileFilter filter = newListingFilter(showDirsOnly, filterArgument);
+        
+        String pathString = Paths.get(currentWorkingDirectory)
+                                    .resolve(pathRequested)
+                                    .normalize()
+                                    .toString(); /* absolute, as the cache is keyed by it */
+        if(getFile(pathString) == null)
+            throw new IOException("Non-existent path: " + pathRequested);
+        
+        List<FTPFile> files = new ArrayList<>();
+        for(FTPFile file: listDirectory(pathString).files) /* filtered on a copy, the listing may be cached */
+            if(filter.accept(file))
+                files.add(file);
+        return files.toArray(new FTPFile[files.size()]);
+    }
+
+    private static FTPFileFilter newListingFilter(final boolean showDirsOnly, 
+                                                  final String filterArgument) throws PatternSyntaxException {
+        Pattern matchPattern = filterArgument==null ? null : Pattern.compile(filterArgument);        
+        return file -> {
+            boolean accept = true;
+            if(matchPattern != null)
+                accept = matchPattern.matcher(file.getName()).matches();
+            if(showDirsOnly)
+                accept &= file.isDirectory();
+            return accept;
+        };
+    }
+
+    /**
+     * Creates directory, even if the parents don't exists.
+     * @path Can be a relative or absolute path.
+     */
+    public void mkdirs(final String pathString) throws IOException {
+        callWithReconnect(() -> {
+            makeDirectories(pathString);
+            return null;
+        });
+    }
+    
+    private void makeDirectories(final String pathString) throws IOException {
+        /* Heuristics:
+         *   Convert pathString to absolute path, resolve & normalize 
+         *     and then inspect for existence and create.
+         */
+        
+        Path cwd = Paths.get(currentWorkingDirectory);
+        Path requestedPath = cwd.resolve(pathString).normalize();
+        
+        String currentPathString = "/";        
+        for(int i=0, len=requestedPath.getNameCount(); i<len; i++) {
+            currentPathString += "/" + requestedPath.getName(i);
+            if(!pathExists(currentPathString))
+                if(!makeRemoteDirectory(ftpClient, currentPathString))
+                    throw new IOException("Cannot create directory: " + currentPathString);
+        }
+    }
+
+    /* Logs out and disconnects from server */
+    public void terminateSession() throws IOException {
+        if(keepAliveScheduler != null) {
+            keepAliveScheduler.shutdownNow();
+            keepAliveScheduler = null;
+        }
+        if(!ftpClient.isBroken()) /* nobody to log out from otherwise */
+            ftpClient.logout(); /* ignoring the return value of logout method 
+                                    as disconnecting is more important after it. 
+                                    But left free to throw the IOException from inside it 
+                                    for reporting any catastrophic error. */
+        currentWorkingDirectory = ROOT_PATH;
+        isSessionAlive = false;
+        ftpClient.disconnect();
+        if(sessionPool != null) {
+            sessionPool.close();
+            sessionPool = null;
+        }
+    }
+
+    private void connect() throws IOException {
+        if(isSessionAlive())
+            throw new IOException("Previous session still alive");
+        isSessionAlive = false;
+        
+        logIn(ftpClient);
+        currentWorkingDirectory = ftpClient.printWorkingDirectory(); /* the only PWD of the session */
+        if(currentWorkingDirectory == null || !currentWorkingDirectory.startsWith(ROOT_PATH))
+            currentWorkingDirectory = ROOT_PATH;
+        isAbsoluteCWDSupported = true;
+        isSessionAlive = true;
+        listingCache.clear(); /* may be from another host */
+        serverFeatures = FTPServerFeatures.get(ftpClient, hostName, port, featureCacheDir);
+        
+        if(sessionPool != null) /* left over from a lost session */
+            sessionPool.close();
+        sessionPool = new FTPSessionPool(sessionFactory, maxSessions, FTPSessionPool.DEFAULT_IDLE_TIMEOUT);
+        
+        if(keepAliveScheduler == null) {
+            keepAliveScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ftp-keepalive");
+                thread.setDaemon(true);
+                return thread;
+            });
+            keepAliveScheduler.scheduleWithFixedDelay(this::keepAlive, 
+                    POOLED_KEEPALIVE_IDLE_TIME/2, POOLED_KEEPALIVE_IDLE_TIME/2, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /* Connects and logs in the client using the current credentials */
+    private void logIn(final FTPClient client) throws IOException {
+        client.connect(hostName, port);
+
+        int replyCode = client.getReplyCode();
+        if (!FTPReply.isPositiveCompletion(replyCode))
+            throw new IOException("Connection failed. (Reply code:" + replyCode + ")");
+
+        if (!client.login(userName, userPassword))
+            throw new IOException("Log in failed. (Reply code: " + client.getReplyCode() + ")");
+        
+        /* use local passive mode to bypass firewall */
+        client.enterLocalPassiveMode();
+        client.setListHiddenFiles(true);
+        client.setFileType(FTP.BINARY_FILE_TYPE); /* some servers refuse SIZE in ASCII mode */
+        client.setBufferSize(bufferPool.getBufferSize());
+        client.setSendDataSocketBufferSize(sendBufferSize);
+        client.setReceieveDataSocketBufferSize(receiveBufferSize);
+    }
+    
+    /* Opens an additional session for the session pool */
+    private FTPSessionClient openSession() throws IOException {
+        FTPSessionClient client = new FTPSessionClient();
+        client.addProtocolCommandListener(commandMetrics.newSessionListener());
+        try {
+            logIn(client);
+        } catch(IOException e) {
+            closeSession(client);
+            throw e;
+        }
+        return client;
+    }
+    
+    private void closeSession(final FTPSessionClient client) {
+        if(!client.isConnected())
+            return;
+        try {
+            client.logout();
+        } catch(IOException e) { /* ignore, disconnecting anyway */
+        }
+        try {
+            client.disconnect();
+        } catch(IOException e) { /* ignore */
+        }
+    }
+    
+    /** 
+     * Optimistic: nothing is sent, the session is only reconnected if an earlier 
+     * command or keepalive found it broken.
+     */
+    private void ensureConnectivity() throws IOException {        
+        if(!isSessionAlive)
+            throw new FTPConnectionClosedException();
+        if(ftpClient.isBroken() || !ftpClient.isConnected())
+            reinitialiseSession();
+    }
+    
+    /**
+     * Runs the idempotent operation, and if the primary session turns out to be 
+     * dead meanwhile, reconnects and runs it once more.
+     */
+    private <T> T callWithReconnect(final IdempotentCall<T> call) throws IOException {
+        ensureConnectivity();
+        try {
+            return call.call();
+        } catch(IOException e) {
+            if(!ftpClient.isBroken())
+                throw e;
+            reinitialiseSession();
+            retriedCount++;
+            return call.call();
+        }
+    }
+    
+    /* Sends NOOPs over the idle sessions, run periodically by the keepalive thread */
+    private void keepAlive() {
+        try {
+            if(ftpClient.keepAlive(KEEPALIVE_IDLE_TIME))
+                keepAliveCount.increment();
+        } catch(IOException e) { /* reconnected on its next use */
+            failedKeepAliveCount.increment();
+        }
+        FTPSessionPool pool = sessionPool;
+        if(pool != null)
+            keepAliveCount.add(pool.keepAliveIdleSessions(POOLED_KEEPALIVE_IDLE_TIME));
+    }
+
+    @Override
+    public void close() {
+        try {
+            terminateSession();
+        } catch(IOException e) { /* ignore */
+        }
+        commandMetrics.unregister();
+    }
+
+    public String getWorkingDirectory() throws IOException {
+        ensureConnectivity();
+        return currentWorkingDirectory;
+    }
+
+    public void moveToRootDirectory() throws IOException {
+        callWithReconnect(() -> {
+            if(!ftpClient.changeWorkingDirectory(ROOT_PATH)) 
+                throw new IOException("Cannot move to root directory from " + currentWorkingDirectory);
+            currentWorkingDirectory = ROOT_PATH;
+            return null;
+        });
+    }
+
+    /** 
+     * Moves with a single CWD to the absolute path, resolved against the working 
+     * directory tracked on the client. Servers rejecting absolute paths are walked 
+     * one path component at a time from the root instead.
+     * @param requestedPathString Can be a discontinued path (i.e. not relative to the PWD).
+     */
+    public void changeWorkingDirectory(final String requestedPathString) throws IOException {
+        callWithReconnect(() -> {
+            moveToDirectory(requestedPathString);
+            return null;
+        });
+    }
+    
+    private void moveToDirectory(final String requestedPathString) throws IOException {
+        Path path = Paths.get(currentWorkingDirectory)
+                        .resolve(requestedPathString)
+                        .normalize(); /* always converts to an absolute path */
+        if(path.toString().equals(currentWorkingDirectory))
+            return; /* already there */
+        
+        if(isAbsoluteCWDSupported && ftpClient.changeWorkingDirectory(path.toString())) {
+            currentWorkingDirectory = path.toString();
+            return;
+        }
+        if(walkToDirectory(path)) {
+            isAbsoluteCWDSupported = false; /* reachable, so the absolute CWD was rejected */
+            currentWorkingDirectory = path.toString();
+            return;
+        }
+        
+        if(!restoreWorkingDirectory())
+            throw new IOException("Cannot move to directory " + path + " nor back to " + currentWorkingDirectory);
+        throw new IOException("Cannot move to directory " + path + " from " + currentWorkingDirectory);
+    }
+
+    public void moveToParentDirectory() throws IOException {
+        callWithReconnect(() -> {
+            if(!ftpClient.changeToParentDirectory()) 
+                throw new IOException("Cannot move to parent directory from " + currentWorkingDirectory);
+            Path parent = Paths.get(currentWorkingDirectory).getParent();
+            currentWorkingDirectory = parent == null ? ROOT_PATH : parent.toString();
+            return null;
+        });
+    }
+    
+    /** 
+     * Due to the limitation of some servers have to change the directory 
+     * one by one from the root and not at once.
+     * @param path Has to be absolute and normalized.
+     * @return false if any of the components could not be entered, leaving the session in between.
+     */
+    private boolean walkToDirectory(final Path path) throws IOException {
+        if(!ftpClient.changeWorkingDirectory(ROOT_PATH))
+            return false;
+        for(int i=0, len=path.getNameCount(); i<len; i++) {
+            String pathDirComponent = path.getName(i).toString();
+            boolean isMoved = PARENT_PATH_ABBREVIATION.equals(pathDirComponent) ? 
+                                ftpClient.changeToParentDirectory() : 
+                                ftpClient.changeWorkingDirectory(pathDirComponent);
+            if(!isMoved)
+                return false;
+        }
+        return true;
+    }
+    
+    /** Moves the session back to the tracked working directory after a failed or probing CWD. */
+    private boolean restoreWorkingDirectory() throws IOException {
+        if(isAbsoluteCWDSupported && ftpClient.changeWorkingDirectory(currentWorkingDirectory))
+            return true;
+        return walkToDirectory(Paths.get(currentWorkingDirectory));
+    }
+
+    public String[] getServerReplies() throws IOException {
+        ensureConnectivity();
+        return ftpClient.getReplyStrings();
+    }
 }
\ No newline at end of file
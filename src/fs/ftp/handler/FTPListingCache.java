@@ -0,0 +1,142 @@
+package fs.ftp.handler;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.net.ftp.FTPFile;
+
+
+/**
+ * Directory listings of a session, kept for a limited time.
+ *
+ * <p>Listings expire after the TTL and the least recently used ones are evicted
+ * once the total number of cached entries goes over the limit. The handler
+ * invalidates the listings it changes itself (MKD, STOR, DELE, RMD, RNTO),
+ * changes made by other clients show up once the TTL expires.</p>
+ */
+class FTPListingCache {
+    /* A cached directory listing */
+    static final class Listing {
+        final FTPFile[] files;
+        final long expiryTime;
+        private Map<String,FTPFile> filesByName = null; /* built on first lookup */
+
+        Listing(final FTPFile[] files, final long expiryTime) {
+            this.files = files;
+            this.expiryTime = expiryTime;
+        }
+
+        synchronized FTPFile find(final String name) {
+            if(filesByName == null) {
+                filesByName = new HashMap<>(files.length * 4 / 3 + 1);
+                for(FTPFile file: files)
+                    filesByName.put(file.getName(), file);
+            }
+            return filesByName.get(name);
+        }
+    }
+
+    public static final long DEFAULT_TTL = 30_000L; /* in ms */
+    public static final int DEFAULT_MAX_ENTRIES = 500_000; /* files over all the listings */
+
+    private final long ttl;
+    private final int maxEntries;
+    private final LinkedHashMap<String,Listing> listings = new LinkedHashMap<>(16, 0.75f, true); /* in LRU order */
+    private int entryCount = 0;
+    private long hitCount=0L, missCount=0L, evictionCount=0L, invalidationCount=0L; /* default value set */
+
+
+    FTPListingCache(final long ttl, final int maxEntries) {
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return Listing of the directory if cached and not expired, else null.
+     */
+    synchronized Listing get(final String dirPath) {
+        String key = toKey(dirPath);
+        Listing listing = listings.get(key);
+        if(listing != null && listing.expiryTime <= System.currentTimeMillis()) {
+            remove(key);
+            listing = null;
+        }
+        if(listing == null)
+            missCount++;
+        else
+            hitCount++;
+        return listing;
+    }
+
+    synchronized Listing put(final String dirPath, final FTPFile[] files) {
+        String key = toKey(dirPath);
+        remove(key);
+        Listing listing = new Listing(files, System.currentTimeMillis() + ttl);
+        if(files.length > maxEntries)
+            return listing; /* too big to cache */
+
+        listings.put(key, listing);
+        entryCount += files.length;
+        for(Iterator<Listing> it = listings.values().iterator(); entryCount > maxEntries && it.hasNext(); ) {
+            entryCount -= it.next().files.length; /* least recently used first */
+            it.remove();
+            evictionCount++;
+        }
+        return listing;
+    }
+
+    /** Drops the listing of the parent directory of the changed path. */
+    synchronized void invalidateParent(final String path) {
+        Path parent = Paths.get(path).normalize().getParent();
+        if(parent != null && remove(parent.toString()))
+            invalidationCount++;
+    }
+
+    /** Drops the listings of the directory and everything under it, for removed or renamed directories. */
+    synchronized void invalidateTree(final String dirPath) {
+        String key = toKey(dirPath);
+        String prefix = key.endsWith("/") ? key : key + "/";
+        for(Iterator<Map.Entry<String,Listing>> it = listings.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String,Listing> entry = it.next();
+            if(entry.getKey().equals(key) || entry.getKey().startsWith(prefix)) {
+                entryCount -= entry.getValue().files.length;
+                it.remove();
+                invalidationCount++;
+            }
+        }
+    }
+
+    synchronized void clear() {
+        listings.clear();
+        entryCount = 0;
+    }
+
+    synchronized List<String> getStatistics() {
+        List<String> info = new ArrayList<>();
+        info.add("Cached directories: " + listings.size());
+        info.add("Cached entries: " + entryCount + " (max " + maxEntries + ")");
+        info.add("Time to live: " + ttl + "ms");
+        info.add("Hits: " + hitCount);
+        info.add("Misses: " + missCount);
+        info.add("Evictions: " + evictionCount);
+        info.add("Invalidations: " + invalidationCount);
+        return info;
+    }
+
+    private boolean remove(final String key) {
+        Listing listing = listings.remove(key);
+        if(listing == null)
+            return false;
+        entryCount -= listing.files.length;
+        return true;
+    }
+
+    private static String toKey(final String dirPath) {
+        return Paths.get(dirPath).normalize().toString();
+    }
+}
@@ -0,0 +1,116 @@
+package fs.ftp.handler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeSet;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+
+/**
+ * Extensions advertised by the server in reply to FEAT (RFC 2389).
+ *
+ * <p>Probed once per host and kept as a properties file (feature name to its
+ * parameters) in the feature cache directory, so that reconnecting to the same
+ * host does not need another FEAT. The cached copy is probed again once it gets
+ * older than {@link #MAX_AGE}.</p>
+ */
+class FTPServerFeatures {
+    /* Feature names */
+    static final String MLST = "MLST";
+    static final String MLSD = "MLSD";
+    static final String SIZE = "SIZE";
+    static final String MDTM = "MDTM";
+    static final String REST = "REST";
+    static final String MODE = "MODE";
+    static final String MFMT = "MFMT";
+
+    static final long MAX_AGE = 24L * 60 * 60 * 1000; /* in ms */
+    private static final String KEY_PROBED_TIME = "#probedTime"; /* not a valid feature name */
+
+    private final Properties features;
+
+
+    private FTPServerFeatures(final Properties features) {
+        this.features = features;
+    }
+
+    boolean has(final String featureName) {
+        String name = featureName.toUpperCase(Locale.ROOT);
+        if(name.equals(MLSD)) /* comes with MLST, which is all most servers advertise (RFC 3659, 7.8) */
+            return features.containsKey(MLSD) || features.containsKey(MLST);
+        return features.containsKey(name);
+    }
+
+    /** @return true if MODE Z (deflate) is advertised, e.g. as <code>MODE Z</code> or <code>MODE B;Z</code>. */
+    boolean hasDeflateMode() {
+        String modes = getParameters(MODE);
+        return modes != null && modes.toUpperCase(Locale.ROOT).contains("Z");
+    }
+
+    /**
+     * @return Parameters of the feature, empty if it has none and null if not supported.
+     */
+    String getParameters(final String featureName) {
+        return features.getProperty(featureName.toUpperCase(Locale.ROOT));
+    }
+
+    @Override
+    public String toString() {
+        TreeSet<String> names = new TreeSet<>(features.stringPropertyNames());
+        names.remove(KEY_PROBED_TIME);
+        return names.isEmpty() ? "none" : String.join(", ", names);
+    }
+
+    /**
+     * Loads the features of the server from the cache directory if fresh enough,
+     * else probes the server and updates the cache. Servers on other ports of
+     * the same host are cached apart.
+     * @param port Control port the client is connected to.
+     * @param cacheDir Null to always probe.
+     */
+    static FTPServerFeatures get(final FTPClient client, final String hostName, final int port, final File cacheDir) throws IOException {
+        File cacheFile = cacheDir == null ? null : new File(cacheDir, hostName.replace('/', '+') + "_" + port);
+        if(cacheFile != null && cacheFile.isFile()) {
+            Properties cached = new Properties();
+            try (FileInputStream fin = new FileInputStream(cacheFile)) {
+                cached.load(fin);
+                long probedTime = Long.parseLong(cached.getProperty(KEY_PROBED_TIME, "0"));
+                if(System.currentTimeMillis() - probedTime < MAX_AGE)
+                    return new FTPServerFeatures(cached);
+            } catch(IOException|NumberFormatException e) { /* ignore, probe again */
+            }
+        }
+
+        FTPServerFeatures probed = probe(client);
+        if(cacheFile != null) {
+            probed.features.setProperty(KEY_PROBED_TIME, Long.toString(System.currentTimeMillis()));
+            try (FileOutputStream fout = new FileOutputStream(cacheFile)) {
+                probed.features.store(fout, "FEAT reply of " + hostName + ":" + port);
+            } catch(IOException e) { /* ignore, only a cache */
+            }
+        }
+        return probed;
+    }
+
+    /* Sends FEAT and parses the feature lines, i.e. those starting with a space */
+    private static FTPServerFeatures probe(final FTPClient client) throws IOException {
+        Properties features = new Properties();
+        if(FTPReply.isPositiveCompletion(client.feat())) {
+            for(String line: client.getReplyStrings()) {
+                if(!line.startsWith(" "))
+                    continue;
+                String feature = line.trim();
+                int spaceIdx = feature.indexOf(' ');
+                String name = spaceIdx == -1 ? feature : feature.substring(0, spaceIdx);
+                String params = spaceIdx == -1 ? "" : feature.substring(spaceIdx+1).trim();
+                features.setProperty(name.toUpperCase(Locale.ROOT), params);
+            }
+        }
+        return new FTPServerFeatures(features);
+    }
+}
@@ -0,0 +1,479 @@
+package fs.ftp.handler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.net.SocketFactory;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPCmd;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.io.CopyStreamEvent;
+import org.apache.commons.net.io.CopyStreamListener;
+import org.apache.commons.net.io.Util;
+
+
+/**
+ * FTPClient with the extensions used by the handler which need direct access
+ * to the data connections or to the command/reply exchanges.
+ *
+ * <p>Commands are sent under the client's lock and the client remembers whether
+ * a final reply is still outstanding (after a 1xx preliminary reply, i.e. during
+ * a data transfer), so that a keepalive NOOP from another thread can never slip
+ * in the middle of an exchange. A control connection which failed while sending
+ * or reading a reply is marked broken, to be reconnected before its next use.</p>
+ *
+ * <p>Passive data connections are opened as socket channels, so files can be
+ * moved between them and local file channels without going through streams.</p>
+ *
+ * <p>File data may go deflated (MODE Z), which only the file transfers asking
+ * for it get: any other data connection, e.g. a listing or the streams of cp, 
+ * goes back to stream mode (MODE S) first. The mode is only sent when it has to 
+ * change, and the inflater, deflater and their buffers are reused from one 
+ * file to the next.</p>
+ */
+class FTPSessionClient extends FTPClient {
+    /* Channel backed sockets for the data connections, the control connection keeps a plain one */
+    private static final SocketFactory DATA_SOCKET_FACTORY = new SocketFactory() {
+        @Override
+        public Socket createSocket() throws IOException {
+            return SocketChannel.open().socket();
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port) throws IOException {
+            return SocketChannel.open(new InetSocketAddress(host, port)).socket();
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress address, final int port) throws IOException {
+            return SocketChannel.open(new InetSocketAddress(address, port)).socket();
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port, final InetAddress localAddress, final int localPort) throws IOException {
+            Socket socket = createSocket();
+            socket.bind(new InetSocketAddress(localAddress, localPort));
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress, final int localPort) throws IOException {
+            Socket socket = createSocket();
+            socket.bind(new InetSocketAddress(localAddress, localPort));
+            socket.connect(new InetSocketAddress(address, port));
+            return socket;
+        }
+    };
+
+    private long lastCommandTime = System.currentTimeMillis();
+    private boolean isReplyPending = false; /* default value set */
+    private volatile boolean isBroken = false; /* default value set */
+    private boolean isDeflateMode = false;      /* default value set, MODE Z in effect */
+    private boolean isDeflateRefused = false;   /* default value set, not asked again on this connection */
+    private boolean isDeflateExpected = false;  /* default value set, while opening a MODE Z aware transfer */
+    private Inflater inflater = null;
+    private Deflater deflater = null;
+    private byte[] codecInput = null, codecOutput = null; /* of the buffer size, also digesting uploads */
+
+    @Override
+    public synchronized int sendCommand(final String command, final String args) throws IOException {
+        try {
+            int replyCode = super.sendCommand(command, args);
+            isReplyPending = FTPReply.isPositivePreliminary(replyCode);
+            return replyCode;
+        } catch(IOException e) {
+            isBroken = true;
+            throw e;
+        } finally {
+            lastCommandTime = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public synchronized int getReply() throws IOException {
+        try {
+            int replyCode = super.getReply();
+            isReplyPending = FTPReply.isPositivePreliminary(replyCode);
+            return replyCode;
+        } catch(IOException e) {
+            isBroken = true;
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the control connection failed and has to be reconnected,
+     * also when an exchange was left without its final reply (e.g. after a failed 
+     * data transfer) as the replies would not match the commands anymore.
+     */
+    synchronized boolean isBroken() {
+        return isBroken || isReplyPending;
+    }
+
+    /**
+     * Sends a NOOP if no command has been sent for the idle time and no exchange
+     * is in progress.
+     * @return false if nothing had to be sent.
+     * @throws IOException If the session turned out to be dead.
+     */
+    synchronized boolean keepAlive(final long idleTime) throws IOException {
+        if(isBroken || isReplyPending || !isConnected() || System.currentTimeMillis() - lastCommandTime < idleTime)
+            return false;
+        if(!FTPReply.isPositiveCompletion(sendCommand("NOOP", null)))
+            throw new IOException("Keepalive refused (Reply code: " + getReplyCode() + ")");
+        return true;
+    }
+
+    @Override
+    public void connect(final String hostName, final int port) throws IOException {
+        setSocketFactory(null); /* plain socket for the control connection */
+        super.connect(hostName, port);
+    }
+
+    @Override
+    protected void _connectAction_() throws IOException {
+        super._connectAction_();
+        setSocketFactory(DATA_SOCKET_FACTORY);
+        isDeflateMode = false;
+        isDeflateRefused = false;
+    }
+
+    /* Any data connection not expecting MODE Z goes back to stream mode first */
+    @Override
+    protected Socket _openDataConnection_(final String command, final String arg) throws IOException {
+        if(isDeflateMode && !isDeflateExpected) {
+            if(!FTPReply.isPositiveCompletion(sendCommand("MODE", "S")))
+                throw new IOException("Cannot leave MODE Z (Reply: " + getReplyString().trim() + ")");
+            isDeflateMode = false;
+        }
+        return super._openDataConnection_(command, arg);
+    }
+
+    /**
+     * Opens the data connection of a file transfer, deflated if wanted and 
+     * the server takes MODE Z. A server refusing it is not asked again on 
+     * this connection.
+     * @return Null if the transfer was refused.
+     */
+    private Socket openFileDataConnection(final FTPCmd command, final String remote, final boolean isDeflateWanted) throws IOException {
+        if(isDeflateWanted && !isDeflateMode && !isDeflateRefused) {
+            if(FTPReply.isPositiveCompletion(sendCommand("MODE", "Z")))
+                isDeflateMode = true;
+            else
+                isDeflateRefused = true;
+        }
+        isDeflateExpected = isDeflateWanted && isDeflateMode;
+        try {
+            return _openDataConnection_(command, remote);
+        } finally {
+            isDeflateExpected = false;
+        }
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+        try {
+            super.disconnect();
+        } finally {
+            synchronized(this) {
+                isReplyPending = false;
+            }
+            isBroken = false; /* until connected and failed again */
+            if(inflater != null)
+                inflater.end();
+            if(deflater != null)
+                deflater.end();
+            inflater = null;
+            deflater = null;
+            codecInput = codecOutput = null;
+        }
+    }
+
+    /* The buffers follow the buffer size, which may change between connections */
+    private void ensureCodecBuffers() {
+        int size = getBufferSize() > 0 ? getBufferSize() : Util.DEFAULT_COPY_BUFFER_SIZE;
+        if(codecInput == null || codecInput.length != size) {
+            codecInput = new byte[size];
+            codecOutput = new byte[size];
+        }
+    }
+
+    /**
+     * Downloads the file into the channel from its current position, a buffer
+     * at a time. The restart offset applies as with <code>retrieveFile</code>.
+     * Reads of a channel ignore the data timeout, which the handler never sets.
+     * @param isDeflateWanted If set, the file goes deflated (MODE Z) when the 
+     * server takes it. Not to be combined with a restart offset.
+     * @param digest Fed the data as it is written, null for none.
+     * @return false if the transfer was refused or not completed by the server.
+     */
+    boolean retrieveFile(final String remote, final FileChannel out, final ByteBuffer buffer, final boolean isDeflateWanted, 
+                         final FTPChecksum.Digest digest, final TransferProgress.FileTransfer transfer) throws IOException {
+        Socket socket = openFileDataConnection(FTPCmd.RETR, remote, isDeflateWanted);
+        if(socket == null)
+            return false;
+
+        try {
+            if(isDeflateMode) {
+                transfer.deflated();
+                inflate(socket.getInputStream(), out, digest, transfer);
+            } else {
+                ReadableByteChannel in = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getInputStream());
+                long total = 0L;
+                boolean isEnd = false; /* default value set */
+                while(!isEnd) {
+                    buffer.clear();
+                    while(buffer.hasRemaining() && !isEnd) /* full buffers, fewer writes */
+                        isEnd = in.read(buffer) == -1;
+                    buffer.flip();
+                    int count = buffer.remaining();
+                    if(digest != null) {
+                        digest.update(buffer);
+                        buffer.rewind();
+                    }
+                    while(buffer.hasRemaining())
+                        out.write(buffer);
+                    if(count > 0) {
+                        total += count;
+                        transfer.bytesTransferred(total, count, CopyStreamEvent.UNKNOWN_STREAM_SIZE);
+                    }
+                }
+            }
+        } finally {
+            socket.close();
+        }
+        return completePendingCommand();
+    }
+
+    /* The deflated data of a transfer is one zlib stream */
+    private void inflate(final InputStream in, final FileChannel out, final FTPChecksum.Digest digest, 
+                         final TransferProgress.FileTransfer transfer) throws IOException {
+        ensureCodecBuffers();
+        if(inflater == null)
+            inflater = new Inflater();
+        inflater.reset();
+
+        long total = 0L;
+        try {
+            while(!inflater.finished()) {
+                if(inflater.needsInput()) {
+                    int count = in.read(codecInput);
+                    if(count == -1)
+                        throw new IOException("Deflated data cut short after " + total + " bytes");
+                    transfer.wireBytesTransferred(count);
+                    inflater.setInput(codecInput, 0, count);
+                }
+                int count = inflater.inflate(codecOutput);
+                if(count == 0 && inflater.needsDictionary())
+                    throw new IOException("Deflated data needs a preset dictionary");
+                if(count > 0) {
+                    if(digest != null)
+                        digest.update(codecOutput, 0, count);
+                    ByteBuffer buffer = ByteBuffer.wrap(codecOutput, 0, count);
+                    while(buffer.hasRemaining())
+                        out.write(buffer);
+                    total += count;
+                    transfer.bytesTransferred(total, count, CopyStreamEvent.UNKNOWN_STREAM_SIZE);
+                }
+            }
+        } catch(DataFormatException e) {
+            throw new IOException("Invalid deflated data after " + total + " bytes", e);
+        }
+    }
+
+    /**
+     * Downloads a range of the file into the same range of the channel, with 
+     * a restart offset (REST) at its start. The data connection is closed as 
+     * soon as the range is in, which the server reports as it likes (426, 451, 
+     * even 550), so once the whole range is in any final reply will do. 
+     * Ranges of the same file may be written concurrently.
+     * @return false if the transfer was refused.
+     * @throws IOException Also if the remote file ends before the range does.
+     */
+    boolean retrieveRange(final String remote, final FileChannel out, final long position, final long length, 
+                          final ByteBuffer buffer, final CopyStreamListener listener) throws IOException {
+        setRestartOffset(position);
+        Socket socket = _openDataConnection_(FTPCmd.RETR, remote);
+        if(socket == null)
+            return false;
+
+        long total = 0L;
+        try {
+            ReadableByteChannel in = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getInputStream());
+            boolean isEnd = false; /* default value set */
+            while(total < length && !isEnd) {
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), length - total));
+                while(buffer.hasRemaining() && !isEnd)
+                    isEnd = in.read(buffer) == -1;
+                buffer.flip();
+                int count = buffer.remaining();
+                while(buffer.hasRemaining())
+                    out.write(buffer, position + total + count - buffer.remaining());
+                if(count > 0) {
+                    total += count;
+                    listener.bytesTransferred(total, count, CopyStreamEvent.UNKNOWN_STREAM_SIZE);
+                }
+            }
+        } finally {
+            socket.close();
+        }
+
+        boolean isCompleted = completePendingCommand();
+        if(total < length) {
+            if(!isCompleted)
+                throw new IOException("Range failed at " + (position + total) + " (Reply: " + getReplyString().trim() + ")");
+            throw new IOException("Remote file ended at " + (position + total) + " before the end of the range at " + (position + length));
+        }
+        return true;
+    }
+
+    /**
+     * Uploads the channel's file from the offset, appending to the remote file
+     * if the offset is not 0. The file is handed to the socket a chunk at a
+     * time, with no copy through the heap.
+     * @param isDeflateWanted If set, the file goes deflated (MODE Z) when the
+     * server takes it, through the heap then.
+     * @param digest Fed the data from the offset as it is sent, through the heap 
+     * then; null for none.
+     * @return false if the transfer was refused or not completed by the server.
+     */
+    boolean storeFile(final String remote, final FileChannel in, final long offset, final int chunkSize, final boolean isDeflateWanted, 
+                      final FTPChecksum.Digest digest, final TransferProgress.FileTransfer transfer) throws IOException {
+        Socket socket = openFileDataConnection(offset > 0 ? FTPCmd.APPE : FTPCmd.STOR, remote, isDeflateWanted);
+        if(socket == null)
+            return false;
+
+        try {
+            if(isDeflateMode) {
+                transfer.deflated();
+                deflate(in, offset, socket.getOutputStream(), digest, transfer);
+            } else if(digest != null) {
+                digestAndSend(in, offset, socket.getOutputStream(), digest, transfer);
+            } else {
+                WritableByteChannel out = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+                long position = offset, size = in.size();
+                while(position < size) {
+                    long count = in.transferTo(position, Math.min(chunkSize, size - position), out);
+                    if(count <= 0)
+                        break; /* truncated meanwhile */
+                    position += count;
+                    transfer.bytesTransferred(position - offset, (int)count, CopyStreamEvent.UNKNOWN_STREAM_SIZE);
+                }
+            }
+        } finally {
+            socket.close();
+        }
+        return completePendingCommand();
+    }
+
+    /* Sends the file from the offset as it is, digesting each buffer on the way */
+    private void digestAndSend(final FileChannel in, final long offset, final OutputStream out, final FTPChecksum.Digest digest, 
+                               final TransferProgress.FileTransfer transfer) throws IOException {
+        ensureCodecBuffers();
+        ByteBuffer input = ByteBuffer.wrap(codecInput);
+        long position = offset;
+        int count;
+        while((count = in.read((ByteBuffer)input.clear(), position)) != -1) {
+            position += count;
+            digest.update(codecInput, 0, count);
+            out.write(codecInput, 0, count);
+            transfer.bytesTransferred(position - offset, count, CopyStreamEvent.UNKNOWN_STREAM_SIZE);
+        }
+        out.flush();
+    }
+
+    /* Sends the file from the offset as one zlib stream */
+    private void deflate(final FileChannel in, final long offset, final OutputStream out, final FTPChecksum.Digest digest, 
+                         final TransferProgress.FileTransfer transfer) throws IOException {
+        ensureCodecBuffers();
+        if(deflater == null)
+            deflater = new Deflater();
+        deflater.reset();
+
+        ByteBuffer input = ByteBuffer.wrap(codecInput);
+        long position = offset;
+        int count;
+        while((count = in.read((ByteBuffer)input.clear(), position)) != -1) {
+            position += count;
+            if(digest != null)
+                digest.update(codecInput, 0, count);
+            deflater.setInput(codecInput, 0, count);
+            while(!deflater.needsInput())
+                writeDeflated(out, transfer);
+            transfer.bytesTransferred(position - offset, count, CopyStreamEvent.UNKNOWN_STREAM_SIZE);
+        }
+        deflater.finish();
+        while(!deflater.finished())
+            writeDeflated(out, transfer);
+        out.flush();
+    }
+
+    private void writeDeflated(final OutputStream out, final TransferProgress.FileTransfer transfer) throws IOException {
+        int count = deflater.deflate(codecOutput);
+        if(count > 0) {
+            out.write(codecOutput, 0, count);
+            transfer.wireBytesTransferred(count);
+        }
+    }
+
+    /**
+     * Lists the directory with MLSD (RFC 3659), parsing each entry as it arrives
+     * instead of buffering the whole listing first.
+     * @return Empty if the directory cannot be listed, same as LIST.
+     */
+    FTPFile[] mlistDirectory(final String dirPath) throws IOException {
+        Socket socket = _openDataConnection_(FTPCmd.MLSD, dirPath);
+        if(socket == null)
+            return new FTPFile[0];
+
+        List<FTPFile> files = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), getControlEncoding()))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                FTPFile file = MLSDEntryParser.parseEntry(line);
+                if(file != null)
+                    files.add(file);
+            }
+        } finally {
+            socket.close();
+        }
+
+        if(!completePendingCommand())
+            throw new IOException("Cannot list directory: " + dirPath + " (Reply code: " + getReplyCode() + ")");
+        return files.toArray(new FTPFile[files.size()]);
+    }
+
+    /**
+     * Looks up a single entry with MLST, parsed as the MLSD ones. The entry is
+     * expected on a line of its own (RFC 3659), but some servers put it on the
+     * reply line itself, which is accepted as well.
+     * @return Null if the path does not exist or the entry is malformed.
+     */
+    @Override
+    public FTPFile mlistFile(final String path) throws IOException {
+        if(!FTPReply.isPositiveCompletion(sendCommand(FTPCmd.MLST, path)))
+            return null;
+        String[] replyLines = getReplyStrings();
+        String entry = replyLines.length > 1 ? replyLines[1] : replyLines[0].length() > 4 ? replyLines[0].substring(4) : "";
+        return MLSDEntryParser.parseEntry(entry.startsWith(" ") ? entry.substring(1) : entry);
+    }
+}
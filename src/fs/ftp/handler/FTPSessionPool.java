@@ -0,0 +1,268 @@
+package fs.ftp.handler;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Bounded pool of authenticated sessions to a single host.
+ *
+ * <p>Sessions are opened lazily through the {@link SessionFactory} up to the
+ * maximum pool size, after which borrowers wait for a session to be returned.
+ * Each session remembers its last working directory so that a borrower
+ * requesting the same directory does not pay for another CWD.
+ * Sessions left idle for longer than the idle timeout are closed, and idle
+ * sessions can be kept alive with {@link #keepAliveIdleSessions(long)} meanwhile.</p>
+ *
+ * <p>Sessions are closed outside the lock of the pool, so a server slow to
+ * answer QUIT holds up neither the borrowers nor the keepalives.</p>
+ */
+class FTPSessionPool implements AutoCloseable {
+    /* Opens a new logged in session, configured the same way as the primary one */
+    interface SessionFactory {
+        FTPSessionClient openSession() throws IOException;
+        void closeSession(FTPSessionClient client);
+    }
+
+    /* An operation over a borrowed session */
+    interface SessionCall<T> {
+        T call(FTPSessionClient client) throws IOException;
+    }
+
+    private final class PooledSession {
+        final FTPSessionClient client;
+        String workingDirectory = FTPHandler.ROOT_PATH;
+        long lastUsedTime = System.currentTimeMillis();
+
+        PooledSession(final FTPSessionClient client) {
+            this.client = client;
+        }
+    }
+
+    public static final int DEFAULT_MAX_SIZE = 4;
+    public static final long DEFAULT_IDLE_TIMEOUT = 60_000L; /* in ms */
+
+    private final SessionFactory factory;
+    private final int maxSize;
+    private final long idleTimeout;
+    private final Deque<PooledSession> idleSessions = new ArrayDeque<>();
+    private final Map<FTPSessionClient,PooledSession> borrowedSessions = new IdentityHashMap<>();
+    private int openingCount = 0; /* slots reserved by sessions being opened */
+    private long createdCount=0L, evictedCount=0L, deadCount=0L; /* default value set */
+    private boolean isClosed = false; /* default value set */
+
+
+    FTPSessionPool(final SessionFactory factory, final int maxSize, final long idleTimeout) {
+        if(maxSize < 1)
+            throw new IllegalArgumentException("Invalid session pool size: " + maxSize);
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Borrows a session, waiting if all the sessions are in use.
+     * @param workingDirectory Absolute path to move the session to, or null to leave it as is.
+     */
+    FTPSessionClient borrowSession(final String workingDirectory) throws IOException {
+        PooledSession session = null;
+        evictIdleSessions();
+        synchronized(this) {
+            while(session == null) {
+                if(isClosed)
+                    throw new IOException("Session pool closed");
+                if(!idleSessions.isEmpty())
+                    session = idleSessions.pollFirst(); /* most recently used first */
+                else if(borrowedSessions.size() + openingCount < maxSize)
+                    break; /* open a new one outside the lock */
+                else {
+                    try {
+                        wait();
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for a session", e);
+                    }
+                }
+            }
+            if(session == null)
+                openingCount++; /* reserves the slot */
+            else
+                borrowedSessions.put(session.client, session);
+        }
+
+        if(session == null) { /* slot reserved, now open the session */
+            FTPSessionClient client;
+            try {
+                client = factory.openSession();
+            } catch(IOException|RuntimeException e) {
+                synchronized(this) {
+                    openingCount--;
+                    notifyAll();
+                }
+                throw e;
+            }
+            synchronized(this) {
+                openingCount--;
+                session = new PooledSession(client);
+                borrowedSessions.put(client, session);
+                createdCount++;
+            }
+        }
+
+        try {
+            if(workingDirectory != null && !workingDirectory.equals(session.workingDirectory)) {
+                if(!session.client.changeWorkingDirectory(workingDirectory))
+                    throw new IOException("Cannot move pooled session to directory " + workingDirectory);
+                session.workingDirectory = workingDirectory;
+            }
+        } catch(IOException e) {
+            invalidateSession(session.client);
+            throw e;
+        }
+        return session.client;
+    }
+
+    FTPSessionClient borrowSession() throws IOException {
+        return borrowSession(null);
+    }
+
+    /**
+     * Runs the call over a borrowed session, and once more over a fresh one if
+     * the borrowed session turns out to be broken (e.g. closed by the server while idle).
+     */
+    <T> T callWithSession(final SessionCall<T> call) throws IOException {
+        for(int attempt=1; ; attempt++) {
+            FTPSessionClient client = borrowSession();
+            try {
+                T result = call.call(client);
+                returnSession(client);
+                return result;
+            } catch(IOException|RuntimeException e) {
+                boolean isBroken = client.isBroken() || !client.isConnected();
+                if(isBroken)
+                    invalidateSession(client);
+                else
+                    returnSession(client);
+                if(!isBroken || attempt > 1)
+                    throw e;
+            }
+        }
+    }
+
+    /** Gives back a healthy session for reuse. */
+    void returnSession(final FTPSessionClient client) {
+        synchronized(this) {
+            PooledSession session = borrowedSessions.remove(client);
+            if(session == null)
+                return; /* not from this pool or already invalidated */
+            notifyAll();
+            if(!isClosed && client.isConnected()) {
+                session.lastUsedTime = System.currentTimeMillis();
+                idleSessions.addFirst(session);
+                return;
+            }
+        }
+        factory.closeSession(client);
+    }
+
+    /** Discards a session which failed, freeing its slot in the pool. */
+    void invalidateSession(final FTPSessionClient client) {
+        synchronized(this) {
+            if(borrowedSessions.remove(client) == null)
+                return;
+            notifyAll();
+        }
+        factory.closeSession(client);
+    }
+
+    /** Closes the sessions which stayed idle longer than the idle timeout. */
+    void evictIdleSessions() {
+        List<FTPSessionClient> evicted = new ArrayList<>();
+        synchronized(this) {
+            long now = System.currentTimeMillis();
+            for(Iterator<PooledSession> it = idleSessions.iterator(); it.hasNext(); ) {
+                PooledSession session = it.next();
+                if(now - session.lastUsedTime >= idleTimeout) {
+                    it.remove();
+                    evictedCount++;
+                    evicted.add(session.client);
+                }
+            }
+        }
+        for(FTPSessionClient client: evicted)
+            factory.closeSession(client);
+    }
+
+    /**
+     * Sends a keepalive over the idle sessions unused for the idle time, closing the
+     * dead ones. The idle time has to be shorter than the idle timeout, the sessions
+     * idle for longer are evicted first. The sessions are set aside while probed so nobody borrows them
+     * meanwhile, and keep their last used time so that they still get evicted.
+     * @return Number of keepalives sent.
+     */
+    int keepAliveIdleSessions(final long idleTime) {
+        if(idleTime >= idleTimeout)
+            throw new IllegalArgumentException("Keepalive idle time " + idleTime + "ms not below the idle timeout " + idleTimeout + "ms");
+        List<PooledSession> sessions;
+        evictIdleSessions();
+        synchronized(this) {
+            sessions = new ArrayList<>(idleSessions);
+            idleSessions.clear();
+            for(PooledSession session: sessions)
+                borrowedSessions.put(session.client, session);
+        }
+
+        int sentCount = 0;
+        for(PooledSession session: sessions) {
+            boolean isAlive, isKept;
+            try {
+                if(session.client.keepAlive(idleTime))
+                    sentCount++;
+                isAlive = true;
+            } catch(IOException e) {
+                isAlive = false;
+            }
+            synchronized(this) {
+                borrowedSessions.remove(session.client);
+                isKept = isAlive && !isClosed;
+                if(isKept)
+                    idleSessions.addLast(session); /* behind the ones returned meanwhile */
+                if(!isAlive)
+                    deadCount++;
+                notifyAll();
+            }
+            if(!isKept)
+                factory.closeSession(session.client);
+        }
+        return sentCount;
+    }
+
+    synchronized String getStatistics() {
+        return String.format("max=%d, busy=%d, idle=%d, created=%d, evicted=%d, dead=%d, idle timeout=%dms",
+                                maxSize, borrowedSessions.size(), idleSessions.size(),
+                                createdCount, evictedCount, deadCount, idleTimeout);
+    }
+
+    @Override
+    public void close() {
+        List<PooledSession> sessions;
+        synchronized(this) {
+            isClosed = true;
+            sessions = new ArrayList<>(idleSessions);
+            idleSessions.clear();
+            notifyAll(); /* borrowed sessions get closed when returned */
+        }
+        for(PooledSession session: sessions)
+            factory.closeSession(session.client);
+    }
+}
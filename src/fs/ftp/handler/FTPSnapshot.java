@@ -0,0 +1,476 @@
+package fs.ftp.handler;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.TimeZone;
+import org.apache.commons.net.ftp.FTPFile;
+
+
+/**
+ * Read-only index of a remote tree as it was when its snapshot was taken,
+ * memory-mapped from its file, so that listings and walks of even millions
+ * of entries are answered without a connection and without reading the file
+ * up front.
+ *
+ * <p>The file holds, after a fixed header, the directory records in post-order
+ * (the root last), the directory indexes sorted by path, the entry records and
+ * the UTF-8 names the other sections refer to by offset and length. The entries
+ * of a directory are contiguous and sorted by name, so a directory is found by
+ * a binary search on the paths and an entry by a binary search within its
+ * directory. Only directories and their entries are recorded, with size,
+ * modification time and type; owners and permissions are not.</p>
+ */
+final class FTPSnapshot implements Closeable {
+    static final String FILE_EXTENSION = ".snap";
+    static final long UNKNOWN_TIME = Long.MIN_VALUE;
+
+    private static final int MAGIC = 0x46545053; /* "FTPS" */
+    private static final int VERSION = 1;
+    /* magic, version, created time, dir count, entry count, host and root path refs */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 8 + 8;
+    /* modification time, path ref, first entry, entry count */
+    private static final int DIR_RECORD_SIZE = 8 + 8 + 4 + 4;
+    private static final int DIR_ORDER_SIZE = 4;
+    /* size, modification time, name ref, type, dir index (-1 if not a directory) */
+    private static final int ENTRY_RECORD_SIZE = 8 + 8 + 8 + 4 + 4;
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private final File file;
+    private final ByteBuffer buffer;
+    private final long createdTime;
+    private final int dirCount;
+    private final int entryCount;
+    private final int dirOrderOffset;
+    private final int entriesOffset;
+    private final int namesOffset;
+    private final String hostName;
+    private final String rootPath;
+
+
+    private FTPSnapshot(final File file, final ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a snapshot file: " + file);
+        if(buffer.getInt(4) != VERSION)
+            throw new IOException("Unsupported snapshot version " + buffer.getInt(4) + ": " + file);
+        this.createdTime = buffer.getLong(8);
+        this.dirCount = buffer.getInt(16);
+        this.entryCount = buffer.getInt(20);
+        this.dirOrderOffset = HEADER_SIZE + dirCount*DIR_RECORD_SIZE;
+        this.entriesOffset = dirOrderOffset + dirCount*DIR_ORDER_SIZE;
+        this.namesOffset = entriesOffset + entryCount*ENTRY_RECORD_SIZE;
+        if(dirCount < 1 || namesOffset > buffer.capacity())
+            throw new IOException("Truncated snapshot file: " + file);
+        this.hostName = getString(24);
+        this.rootPath = getString(32);
+    }
+
+    /**
+     * Maps the snapshot file, its pages are read as they are used.
+     * @throws IOException If not a snapshot file.
+     */
+    static FTPSnapshot open(final File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if(channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Snapshot file too large to map: " + file);
+            return new FTPSnapshot(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /** The mapping goes with the snapshot once unreachable, there is no unmapping it earlier. */
+    @Override
+    public void close() {
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    String getHostName() {
+        return hostName;
+    }
+
+    String getRootPath() {
+        return rootPath;
+    }
+
+    long getCreatedTime() {
+        return createdTime;
+    }
+
+    /** @return Whether the absolute path is the root or under it. */
+    boolean covers(final String path) {
+        return path.equals(rootPath) || path.startsWith(rootPath.endsWith("/") ? rootPath : rootPath + "/");
+    }
+
+    /**
+     * @param path Absolute path, normalized.
+     * @return The entry, null if not in the snapshot.
+     */
+    FTPFile getFile(final String path) {
+        if(!covers(path))
+            return null;
+        if(path.equals(rootPath))
+            return newFile(rootPath.equals(FTPHandler.ROOT_PATH) ? rootPath : getName(rootPath),
+                           FTPFile.DIRECTORY_TYPE, -1L, getDirectoryTime(dirCount-1));
+        int entryIndex = findEntry(path);
+        return entryIndex == -1 ? null : getEntry(entryIndex);
+    }
+
+    /**
+     * @return The entries of the directory sorted by name, the file itself if not a directory.
+     * @throws IOException If not in the snapshot.
+     */
+    FTPFile[] list(final String path) throws IOException {
+        FTPFile file = getFile(path);
+        if(file == null)
+            throw new IOException("Not in the snapshot of " + rootPath + ": " + path);
+        if(!file.isDirectory())
+            return new FTPFile[] { file };
+        return listDirectory(findDirectory(path));
+    }
+
+    /**
+     * Visits the tree in depth-first order by name, like a remote walk does.
+     * @param maxDepth Directories at this depth are visited but not descended into, negative for no limit.
+     * @param pruner Directories it prunes are visited but not descended into, null for none.
+     * @return Number of directories and files visited.
+     * @throws IOException If not in the snapshot, or from the visitor.
+     */
+    long[] visit(final String path, final int maxDepth, final FTPTreeWalker.Pruner pruner, final FTPTreeVisitor visitor) throws IOException {
+        FTPFile root = getFile(path);
+        if(root == null)
+            throw new IOException("Not in the snapshot of " + rootPath + ": " + path);
+        long[] count = new long[2];
+        count[root.isDirectory() ? 0 : 1]++;
+        visitor.visit(0, path, root);
+        if(!root.isDirectory())
+            return count;
+        if(maxDepth == 0 || (pruner != null && pruner.isPruned(0, path, root))) {
+            visitor.leave(0, path, root);
+            return count;
+        }
+
+        /* frames of the directories on the current path: dir index, next entry, depth of the entries */
+        Deque<int[]> stack = new ArrayDeque<>();
+        Deque<String> paths = new ArrayDeque<>();
+        Deque<FTPFile> dirs = new ArrayDeque<>();
+        stack.push(new int[] { findDirectory(path), 0, 1 });
+        paths.push(path);
+        dirs.push(root);
+        while(!stack.isEmpty()) {
+            int[] frame = stack.peek();
+            if(frame[1] == getDirectoryEntryCount(frame[0])) {
+                stack.pop();
+                visitor.leave(frame[2]-1, paths.pop(), dirs.pop());
+                continue;
+            }
+
+            int entryIndex = getDirectoryFirstEntry(frame[0]) + frame[1]++;
+            FTPFile file = getEntry(entryIndex);
+            String parentPath = paths.peek();
+            String filePath = (parentPath.endsWith("/") ? parentPath : parentPath + "/") + file.getName();
+            count[file.isDirectory() ? 0 : 1]++;
+            visitor.visit(frame[2], filePath, file);
+            if(!file.isDirectory())
+                continue;
+            int dirIndex = getEntryDirIndex(entryIndex);
+            if(frame[2] == maxDepth || dirIndex == -1 || (pruner != null && pruner.isPruned(frame[2], filePath, file))) { /* not descended into */
+                visitor.leave(frame[2], filePath, file);
+                continue;
+            }
+            stack.push(new int[] { dirIndex, 0, frame[2]+1 });
+            paths.push(filePath);
+            dirs.push(file);
+        }
+        return count;
+    }
+
+    /**
+     * Counts from the records alone, without building any entry.
+     * @return Number of directories and files, the root included.
+     * @throws IOException If not in the snapshot.
+     */
+    long[] count(final String path) throws IOException {
+        FTPFile root = getFile(path);
+        if(root == null)
+            throw new IOException("Not in the snapshot of " + rootPath + ": " + path);
+        if(!root.isDirectory())
+            return new long[] { 0L, 1L };
+
+        long dirs=1L, files=0L; /* default value set */
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(findDirectory(path));
+        while(!pending.isEmpty()) {
+            int dirIndex = pending.pop();
+            for(int i=getDirectoryFirstEntry(dirIndex), end=i+getDirectoryEntryCount(dirIndex); i<end; i++) {
+                int entryOffset = entriesOffset + i*ENTRY_RECORD_SIZE;
+                if(buffer.getInt(entryOffset + 24) == FTPFile.DIRECTORY_TYPE) {
+                    dirs++;
+                    int subdirIndex = buffer.getInt(entryOffset + 28);
+                    if(subdirIndex != -1)
+                        pending.push(subdirIndex);
+                } else {
+                    files++;
+                }
+            }
+        }
+        return new long[] { dirs, files };
+    }
+
+    /* Record access, by index */
+
+    /** @return Index of the directory record, -1 if not in the snapshot. */
+    int findDirectory(final String path) {
+        int low = 0, high = dirCount-1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int dirIndex = buffer.getInt(dirOrderOffset + mid*DIR_ORDER_SIZE);
+            int cmp = getString(getDirectoryOffset(dirIndex) + 8).compareTo(path);
+            if(cmp < 0)
+                low = mid + 1;
+            else if(cmp > 0)
+                high = mid - 1;
+            else
+                return dirIndex;
+        }
+        return -1;
+    }
+
+    long getDirectoryTime(final int dirIndex) {
+        return buffer.getLong(getDirectoryOffset(dirIndex));
+    }
+
+    /** @return The entries sorted by name. */
+    FTPFile[] listDirectory(final int dirIndex) {
+        int first = getDirectoryFirstEntry(dirIndex);
+        FTPFile[] files = new FTPFile[getDirectoryEntryCount(dirIndex)];
+        for(int i=0; i<files.length; i++)
+            files[i] = getEntry(first + i);
+        return files;
+    }
+
+    private int findEntry(final String path) {
+        int idx = path.lastIndexOf('/');
+        int dirIndex = findDirectory(idx == 0 ? FTPHandler.ROOT_PATH : path.substring(0, idx));
+        if(dirIndex == -1)
+            return -1;
+        String name = path.substring(idx+1);
+        int low = getDirectoryFirstEntry(dirIndex), high = low + getDirectoryEntryCount(dirIndex) - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = getString(entriesOffset + mid*ENTRY_RECORD_SIZE + 16).compareTo(name);
+            if(cmp < 0)
+                low = mid + 1;
+            else if(cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    private int getDirectoryOffset(final int dirIndex) {
+        return HEADER_SIZE + dirIndex*DIR_RECORD_SIZE;
+    }
+
+    private int getDirectoryFirstEntry(final int dirIndex) {
+        return buffer.getInt(getDirectoryOffset(dirIndex) + 16);
+    }
+
+    private int getDirectoryEntryCount(final int dirIndex) {
+        return buffer.getInt(getDirectoryOffset(dirIndex) + 20);
+    }
+
+    private FTPFile getEntry(final int entryIndex) {
+        int offset = entriesOffset + entryIndex*ENTRY_RECORD_SIZE;
+        return newFile(getString(offset + 16), buffer.getInt(offset + 24), buffer.getLong(offset), buffer.getLong(offset + 8));
+    }
+
+    private int getEntryDirIndex(final int entryIndex) {
+        return buffer.getInt(entriesOffset + entryIndex*ENTRY_RECORD_SIZE + 28);
+    }
+
+    /* Decodes the name referred to by the offset and length at the given position */
+    private String getString(final int refOffset) {
+        byte[] bytes = new byte[buffer.getInt(refOffset + 4)];
+        ByteBuffer names = buffer.duplicate(); /* positioned on its own, for concurrent readers */
+        names.position(namesOffset + buffer.getInt(refOffset));
+        names.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static FTPFile newFile(final String name, final int type, final long size, final long time) {
+        FTPFile file = new FTPFile();
+        file.setName(name);
+        file.setType(type);
+        file.setSize(size);
+        file.setTimestamp(toCalendar(time));
+        return file;
+    }
+
+    /** @return Null for an unknown time. */
+    static Calendar toCalendar(final long time) {
+        if(time == UNKNOWN_TIME)
+            return null;
+        Calendar timestamp = Calendar.getInstance(UTC);
+        timestamp.setTimeInMillis(time);
+        return timestamp;
+    }
+
+    private static String getName(final String path) {
+        return path.substring(path.lastIndexOf('/')+1);
+    }
+
+    static long getTime(final FTPFile file) {
+        return file.getTimestamp() == null ? UNKNOWN_TIME : file.getTimestamp().getTimeInMillis();
+    }
+
+
+    /**
+     * Writes a snapshot file from directories added in post-order, the root last,
+     * with their entries sorted by name. Entries and names are streamed to
+     * temporary files next to the target while the directory records are kept,
+     * and all of it is put together on {@link #finish(long)}, which replaces the
+     * target at once.
+     */
+    static final class Writer implements Closeable {
+        /* A directory record, until they are all known and sorted */
+        private static final class Dir {
+            final String path;
+            final long time;
+            final int pathOffset, pathLength, firstEntry, entryCount;
+
+            Dir(final String path, final long time, final int pathOffset, final int pathLength, final int firstEntry, final int entryCount) {
+                this.path = path;
+                this.time = time;
+                this.pathOffset = pathOffset;
+                this.pathLength = pathLength;
+                this.firstEntry = firstEntry;
+                this.entryCount = entryCount;
+            }
+        }
+
+        private final File file;
+        private final File entriesFile, namesFile;
+        private final DataOutputStream entriesOut, namesOut;
+        private final List<Dir> dirs = new ArrayList<>();
+        private final int hostOffset, hostLength, rootOffset, rootLength;
+        private int entryCount = 0; /* default value set */
+        private long namesLength = 0L; /* default value set */
+
+
+        Writer(final File file, final String hostName, final String rootPath) throws IOException {
+            this.file = file;
+            this.entriesFile = new File(file.getPath() + ".entries.tmp");
+            this.namesFile = new File(file.getPath() + ".names.tmp");
+            this.entriesOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(entriesFile)));
+            this.namesOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(namesFile)));
+            byte[] host = hostName.getBytes(StandardCharsets.UTF_8);
+            this.hostOffset = addName(host);
+            this.hostLength = host.length;
+            byte[] root = rootPath.getBytes(StandardCharsets.UTF_8);
+            this.rootOffset = addName(root);
+            this.rootLength = root.length;
+        }
+
+        /**
+         * @param files Entries of the directory, sorted by name.
+         * @param dirIndexes Indexes returned for the subdirectories already added, -1 for the other entries.
+         * @return Index of the directory.
+         */
+        synchronized int addDirectory(final String path, final long time, final FTPFile[] files, final int[] dirIndexes) throws IOException {
+            int firstEntry = entryCount;
+            for(int i=0; i<files.length; i++) {
+                byte[] name = files[i].getName().getBytes(StandardCharsets.UTF_8);
+                entriesOut.writeLong(files[i].getSize());
+                entriesOut.writeLong(getTime(files[i]));
+                entriesOut.writeInt(addName(name));
+                entriesOut.writeInt(name.length);
+                entriesOut.writeInt(files[i].getType());
+                entriesOut.writeInt(dirIndexes[i]);
+            }
+            entryCount += files.length;
+
+            byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+            dirs.add(new Dir(path, time, addName(pathBytes), pathBytes.length, firstEntry, files.length));
+            return dirs.size()-1;
+        }
+
+        private int addName(final byte[] name) throws IOException {
+            long offset = namesLength;
+            if(offset + name.length > Integer.MAX_VALUE)
+                throw new IOException("Snapshot too large, names over 2 GB");
+            namesOut.write(name);
+            namesLength += name.length;
+            return (int)offset;
+        }
+
+        /** Puts the file together and moves it in place of the target. */
+        synchronized void finish(final long createdTime) throws IOException {
+            entriesOut.close();
+            namesOut.close();
+            long size = HEADER_SIZE + (long)dirs.size()*(DIR_RECORD_SIZE + DIR_ORDER_SIZE)
+                            + (long)entryCount*ENTRY_RECORD_SIZE + namesLength;
+            if(size > Integer.MAX_VALUE)
+                throw new IOException("Snapshot too large to map: " + size + " bytes");
+
+            Integer[] order = new Integer[dirs.size()];
+            for(int i=0; i<order.length; i++)
+                order[i] = i;
+            Arrays.sort(order, (i1, i2) -> dirs.get(i1).path.compareTo(dirs.get(i2).path));
+
+            File tmpFile = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(createdTime);
+                out.writeInt(dirs.size());
+                out.writeInt(entryCount);
+                out.writeInt(hostOffset);
+                out.writeInt(hostLength);
+                out.writeInt(rootOffset);
+                out.writeInt(rootLength);
+                for(Dir dir: dirs) {
+                    out.writeLong(dir.time);
+                    out.writeInt(dir.pathOffset);
+                    out.writeInt(dir.pathLength);
+                    out.writeInt(dir.firstEntry);
+                    out.writeInt(dir.entryCount);
+                }
+                for(Integer dirIndex: order)
+                    out.writeInt(dirIndex);
+                Files.copy(entriesFile.toPath(), out);
+                Files.copy(namesFile.toPath(), out);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /** Removes the temporary files, the target is left as it was unless finished. */
+        @Override
+        public void close() throws IOException {
+            entriesOut.close();
+            namesOut.close();
+            Files.deleteIfExists(entriesFile.toPath());
+            Files.deleteIfExists(namesFile.toPath());
+            Files.deleteIfExists(new File(file.getPath() + ".tmp").toPath());
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package fs.ftp.handler;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.commons.net.ftp.FTPFile;
+
+
+/**
+ * Takes the snapshot of a remote tree, listing many directories concurrently
+ * over the pooled sessions, and writes it as the directories complete.
+ *
+ * <p>Every directory forks a task per subdirectory on a work-stealing pool
+ * sized to the session pool, and is written once all of them are, so the
+ * directories reach the {@link FTPSnapshot.Writer} in post-order with the
+ * index of each subdirectory known.</p>
+ *
+ * <p>Given the previous snapshot of the root, a directory whose modification
+ * time is the one recorded is not listed again: its entries are taken from the
+ * previous snapshot and the times of its subdirectories looked up one by one
+ * (MLST), which costs no data connection. Without such lookups, only the
+ * directories without subdirectories can be skipped. Files rewritten in place
+ * leave the time of their directory as it was, so they keep the size and time
+ * of the previous snapshot until a full one is taken.</p>
+ *
+ * <p>The first failing listing or lookup aborts the snapshot.</p>
+ */
+final class FTPSnapshotBuilder {
+    /* Remote operations of the builder */
+    interface Lister {
+        FTPFile[] listFiles(FTPSessionClient session, String dirPath) throws IOException;
+        boolean canLookUp();
+        /* The entry of the path alone, null if it does not exist */
+        FTPFile lookUp(FTPSessionClient session, String path) throws IOException;
+    }
+
+    private static final Comparator<FTPFile> BY_NAME = (file1, file2) -> file1.getName().compareTo(file2.getName());
+
+    private final FTPSessionPool sessionPool;
+    private final Lister lister;
+    private final FTPSnapshot previous;
+    private final FTPSnapshot.Writer writer;
+    private final LongAdder dirCount = new LongAdder();
+    private final LongAdder fileCount = new LongAdder();
+    private final LongAdder listedCount = new LongAdder();
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+
+    /**
+     * @param previous Snapshot of the same root to refresh, null to list every directory.
+     */
+    FTPSnapshotBuilder(final FTPSessionPool sessionPool, final Lister lister, final FTPSnapshot previous,
+                       final FTPSnapshot.Writer writer) {
+        this.sessionPool = sessionPool;
+        this.lister = lister;
+        this.previous = previous;
+        this.writer = writer;
+    }
+
+    long getDirCount() {
+        return dirCount.sum();
+    }
+
+    long getFileCount() {
+        return fileCount.sum();
+    }
+
+    /** @return Number of directories listed, the others were taken from the previous snapshot. */
+    long getListedCount() {
+        return listedCount.sum();
+    }
+
+    /**
+     * Walks the tree, adding every directory to the writer.
+     * @param rootPath Absolute path of the root, a directory.
+     */
+    void build(final String rootPath, final FTPFile root) throws IOException {
+        dirCount.increment();
+        ForkJoinPool pool = new ForkJoinPool(sessionPool.getMaxSize());
+        try {
+            pool.invoke(new SnapshotTask(null, -1, rootPath, FTPSnapshot.getTime(root), false));
+        } catch(RuntimeException e) {
+            if(failure.get() == null)
+                throw new IOException("Snapshot failed under " + rootPath, e);
+        } finally {
+            pool.shutdownNow(); /* stops the tasks still queued after a failure */
+        }
+        if(failure.get() != null)
+            throw failure.get();
+    }
+
+    /* Lists a directory, or takes it from the previous snapshot, and forks its subdirectories */
+    private final class SnapshotTask extends CountedCompleter<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final SnapshotTask parent;
+        private final int slot; /* of the directory among the entries of the parent */
+        private final String dirPath;
+        private long time;
+        private final boolean isTimeToLookUp; /* the parent was not listed, so its entry of it may be stale */
+        private FTPFile[] files;
+        private int[] dirIndexes;
+
+        SnapshotTask(final SnapshotTask parent, final int slot, final String dirPath, final long time, final boolean isTimeToLookUp) {
+            super(parent);
+            this.parent = parent;
+            this.slot = slot;
+            this.dirPath = dirPath;
+            this.time = time;
+            this.isTimeToLookUp = isTimeToLookUp;
+        }
+
+        @Override
+        public void compute() {
+            if(failure.get() != null) { /* already aborted */
+                tryComplete();
+                return;
+            }
+
+            boolean isListed;
+            try {
+                if(isTimeToLookUp) {
+                    FTPFile dir = sessionPool.callWithSession(session -> lister.lookUp(session, dirPath));
+                    if(dir == null)
+                        throw new IOException("Directory gone while taking the snapshot: " + dirPath);
+                    time = FTPSnapshot.getTime(dir);
+                }
+                files = getUnchangedFiles();
+                isListed = files == null;
+                if(isListed) {
+                    files = sessionPool.callWithSession(session -> lister.listFiles(session, dirPath));
+                    listedCount.increment();
+                    Arrays.sort(files, BY_NAME);
+                }
+            } catch(IOException e) {
+                failure.compareAndSet(null, e);
+                completeExceptionally(e);
+                return;
+            }
+
+            dirIndexes = new int[files.length];
+            Arrays.fill(dirIndexes, -1);
+            String parentPath = dirPath.endsWith("/") ? dirPath : dirPath + "/";
+            for(int i=0; i<files.length; i++) {
+                if(files[i].isDirectory()) {
+                    dirCount.increment();
+                    addToPendingCount(1);
+                    new SnapshotTask(this, i, parentPath + files[i].getName(), FTPSnapshot.getTime(files[i]), !isListed).fork();
+                } else {
+                    fileCount.increment();
+                }
+            }
+            tryComplete();
+        }
+
+        /* @return The entries of the previous snapshot if the directory did not change since, else null */
+        private FTPFile[] getUnchangedFiles() {
+            if(previous == null || time == FTPSnapshot.UNKNOWN_TIME)
+                return null;
+            int dirIndex = previous.findDirectory(dirPath);
+            if(dirIndex == -1 || previous.getDirectoryTime(dirIndex) != time)
+                return null;
+            FTPFile[] previousFiles = previous.listDirectory(dirIndex);
+            if(!lister.canLookUp())
+                for(FTPFile file: previousFiles)
+                    if(file.isDirectory())
+                        return null; /* listed for the times of its subdirectories */
+            return previousFiles;
+        }
+
+        /* Everything under it is written, so it can be too */
+        @Override
+        public void onCompletion(final CountedCompleter<?> caller) {
+            if(failure.get() != null)
+                return;
+            try {
+                int dirIndex = writer.addDirectory(dirPath, time, files, dirIndexes);
+                if(parent != null) {
+                    parent.dirIndexes[slot] = dirIndex;
+                    if(isTimeToLookUp) /* the looked up time, not the previous one */
+                        parent.files[slot].setTimestamp(FTPSnapshot.toCalendar(time));
+                }
+            } catch(IOException e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+}
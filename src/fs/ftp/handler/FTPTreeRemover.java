@@ -0,0 +1,135 @@
+package fs.ftp.handler;
+
+import java.io.IOException;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import org.apache.commons.net.ftp.FTPFile;
+
+
+/**
+ * Removes a remote tree in post-order with many DELE/RMD in flight at once,
+ * each over a session borrowed from the session pool.
+ *
+ * <p>Every listed directory forks a task per entry on a work-stealing pool
+ * sized to the session pool, so files of different directories are deleted
+ * concurrently. A directory keeps count of its pending entries and is removed
+ * as soon as the last of them completes; if any of them failed, the directory
+ * cannot be empty and is reported as failed without sending its RMD.</p>
+ */
+final class FTPTreeRemover {
+    /* Remote operations and result recording of the remover */
+    interface Remover {
+        FTPFile[] listFiles(FTPSessionClient session, String dirPath) throws IOException;
+        /* Both throw with the reason if refused */
+        void deleteFile(FTPSessionClient session, String path) throws IOException;
+        void removeDirectory(FTPSessionClient session, String path) throws IOException;
+        void succeeded(String path, FTPFile file);
+        void failed(String path, FTPFile file, String reason);
+    }
+
+    /* A DELE or RMD */
+    private interface RemoveCall {
+        void remove(FTPSessionClient session) throws IOException;
+    }
+
+    private final FTPSessionPool sessionPool;
+    private final Remover remover;
+
+
+    FTPTreeRemover(final FTPSessionPool sessionPool, final Remover remover) {
+        this.sessionPool = sessionPool;
+        this.remover = remover;
+    }
+
+    /**
+     * Removes the root and everything under it, recording each entry as succeeded or failed.
+     * @param rootPath Absolute path of the root.
+     * @return false if anything could not be removed.
+     */
+    boolean remove(final String rootPath, final FTPFile root) {
+        RemoveTask task = new RemoveTask(null, rootPath, root);
+        ForkJoinPool pool = new ForkJoinPool(sessionPool.getMaxSize());
+        try {
+            pool.invoke(task);
+        } finally {
+            pool.shutdown();
+        }
+        return !task.hasFailed;
+    }
+
+    /* Deletes a file, or lists a directory and forks the removal of its entries before removing it */
+    private final class RemoveTask extends CountedCompleter<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+        private final FTPFile file;
+        private volatile boolean hasFailed = false; /* default value set, this or any entry under it */
+        private String listFailure = null; /* default value set, reason the directory could not be listed */
+
+        RemoveTask(final RemoveTask parent, final String path, final FTPFile file) {
+            super(parent);
+            this.path = path;
+            this.file = file;
+        }
+
+        @Override
+        public void compute() {
+            if(!file.isDirectory()) {
+                run(session -> remover.deleteFile(session, path));
+                tryComplete();
+                return;
+            }
+
+            FTPFile[] files;
+            try {
+                files = sessionPool.callWithSession(session -> remover.listFiles(session, path));
+            } catch(IOException|RuntimeException e) {
+                listFailure = "Cannot list directory: " + OperationResult.getReason(e);
+                markFailed(); /* nothing under it can be removed, nor itself */
+                tryComplete();
+                return;
+            }
+
+            String parentPath = path.endsWith("/") ? path : path + "/";
+            setPendingCount(files.length);
+            for(FTPFile child: files)
+                new RemoveTask(this, parentPath + child.getName(), child).fork();
+            tryComplete();
+        }
+
+        /* All the entries are done, so the directory can go now */
+        @Override
+        public void onCompletion(final CountedCompleter<?> caller) {
+            if(!file.isDirectory())
+                return;
+            if(hasFailed) /* not listed or cannot be empty */
+                remover.failed(path, file, listFailure != null ? listFailure : "Not empty, entries under it could not be removed");
+            else
+                run(session -> remover.removeDirectory(session, path));
+        }
+
+        /* Sends the DELE or RMD over a pooled session and records the result */
+        private void run(final RemoveCall call) {
+            try {
+                sessionPool.callWithSession(session -> {
+                    call.remove(session);
+                    return null;
+                });
+            } catch(IOException|RuntimeException e) {
+                markFailed();
+                remover.failed(path, file, OperationResult.getReason(e));
+                return;
+            }
+            remover.succeeded(path, file);
+        }
+
+        private void markFailed() {
+            for(CountedCompleter<?> task = this; task != null; task = task.getCompleter()) {
+                RemoveTask removeTask = (RemoveTask)task;
+                if(removeTask.hasFailed)
+                    break; /* ancestors already marked */
+                removeTask.hasFailed = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package fs.ftp.handler;
+
+import java.io.IOException;
+import org.apache.commons.net.ftp.FTPFile;
+
+
+/**
+ * Receives the entries of a remote tree walk one by one, in depth-first
+ * listing order, as soon as their parent directory is listed.
+ */
+public interface FTPTreeVisitor {
+    /**
+     * @param depth Depth of the entry, 0 for the root.
+     * @param path Absolute path of the entry.
+     * @throws IOException To abort the walk.
+     */
+    void visit(int depth, String path, FTPFile file) throws IOException;
+
+    /**
+     * Called once everything under the directory has been visited, 
+     * for a walk in post-order as well.
+     * @throws IOException To abort the walk.
+     */
+    default void leave(int depth, String path, FTPFile dir) throws IOException {
+    }
+
+    /**
+     * Called when a directory of an unordered walk cannot be listed, its 
+     * entries are skipped and the walk goes on with the others. Rethrows 
+     * by default.
+     * @param depth Depth of the directory.
+     * @throws IOException To abort the walk.
+     */
+    default void listFailed(int depth, String path, FTPFile dir, IOException e) throws IOException {
+        throw e;
+    }
+}
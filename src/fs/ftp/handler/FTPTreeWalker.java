@@ -0,0 +1,309 @@
+package fs.ftp.handler;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.commons.net.ftp.FTPFile;
+
+
+/**
+ * Walks a remote directory tree listing many directories concurrently,
+ * each listing over a session borrowed from the session pool.
+ *
+ * <p>{@link #count(String, FTPFile)} and
+ * {@link #visitUnordered(String, FTPFile, Pruner, FTPTreeVisitor)} fork a task
+ * per subdirectory on a work-stealing pool sized to the session pool, so the
+ * number of concurrent listings never goes over the sessions allowed to the
+ * host. Counts are kept in adders.</p>
+ *
+ * <p>{@link #visit(String, FTPFile, int, FTPTreeVisitor)} hands the entries
+ * to a visitor in depth-first listing order on the calling thread, leaving each
+ * directory once everything under it has been visited, while the
+ * next few directories in that order are listed ahead. Only the listings on
+ * the current path and a bounded number of prefetched ones are held, whatever
+ * the size of the tree.</p>
+ *
+ * <p>A walker walks a single tree, the first failing listing aborts the walk
+ * unless the visitor of an unordered walk takes it, see
+ * {@link FTPTreeVisitor#listFailed(int, String, FTPFile, IOException)}.</p>
+ */
+final class FTPTreeWalker {
+    /* Lists a directory over the given session */
+    interface Lister {
+        FTPFile[] listFiles(FTPSessionClient session, String dirPath) throws IOException;
+    }
+
+    /* Tells the directories not to list, called from the listing threads */
+    interface Pruner {
+        boolean isPruned(int depth, String path, FTPFile dir);
+    }
+
+    /* A listed directory on the current path of the ordered walk */
+    private static final class Frame {
+        final String dirPath;
+        final FTPFile dir;
+        final String parentPath;
+        final int depth; /* of the entries */
+        final FTPFile[] files;
+        int index = 0;          /* next entry to visit */
+        int prefetchIndex = 0;  /* next entry to consider for prefetching */
+        final Deque<Future<FTPFile[]>> prefetched = new ArrayDeque<>(); /* in entry order */
+
+        Frame(final String dirPath, final FTPFile dir, final int depth, final FTPFile[] files) {
+            this.dirPath = dirPath;
+            this.dir = dir;
+            this.parentPath = dirPath.endsWith("/") ? dirPath : dirPath + "/";
+            this.depth = depth;
+            this.files = files;
+        }
+    }
+
+    private static final int PREFETCHED_LISTINGS_PER_SESSION = 8;
+
+    private final FTPSessionPool sessionPool;
+    private final Lister lister;
+    private final LongAdder dirCount = new LongAdder();
+    private final LongAdder fileCount = new LongAdder();
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+
+    FTPTreeWalker(final FTPSessionPool sessionPool, final Lister lister) {
+        this.sessionPool = sessionPool;
+        this.lister = lister;
+    }
+
+    long getDirCount() {
+        return dirCount.sum();
+    }
+
+    long getFileCount() {
+        return fileCount.sum();
+    }
+
+    /**
+     * Counts the entries of the tree, listing in no particular order.
+     * @param rootPath Absolute path of the root.
+     */
+    void count(final String rootPath, final FTPFile rootFile) throws IOException {
+        visitUnordered(rootPath, rootFile, null, null);
+    }
+
+    /**
+     * Visits the entries of the tree as their directories get listed, in no
+     * particular order and without leaving directories. The visitor is called
+     * by a single thread at a time, and nothing is held once visited.
+     * @param rootPath Absolute path of the root.
+     * @param pruner Directories it prunes are visited but not listed, null to list all.
+     * @param visitor Null to count only, failing on the first listing that does.
+     */
+    void visitUnordered(final String rootPath, final FTPFile rootFile, final Pruner pruner, final FTPTreeVisitor visitor) throws IOException {
+        countVisited(rootFile);
+        if(visitor != null)
+            visitor.visit(0, rootPath, rootFile);
+        if(!rootFile.isDirectory() || (pruner != null && pruner.isPruned(0, rootPath, rootFile)))
+            return;
+
+        ForkJoinPool pool = new ForkJoinPool(sessionPool.getMaxSize());
+        try {
+            pool.invoke(new WalkTask(null, rootPath, rootFile, 1, pruner, visitor));
+        } catch(RuntimeException e) {
+            if(failure.get() == null)
+                throw new IOException("Tree walk failed under " + rootPath, e);
+        } finally {
+            pool.shutdownNow(); /* stops the tasks still queued after a failure */
+        }
+        if(failure.get() != null)
+            throw failure.get();
+    }
+
+    /* Lists a single directory, visits its entries and forks the walk of its subdirectories */
+    private final class WalkTask extends CountedCompleter<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final String dirPath;
+        private final FTPFile dir;
+        private final int depth; /* of the entries */
+        private final Pruner pruner;
+        private final FTPTreeVisitor visitor;
+
+        WalkTask(final WalkTask parent, final String dirPath, final FTPFile dir, final int depth, final Pruner pruner, final FTPTreeVisitor visitor) {
+            super(parent);
+            this.dirPath = dirPath;
+            this.dir = dir;
+            this.depth = depth;
+            this.pruner = pruner;
+            this.visitor = visitor;
+        }
+
+        @Override
+        public void compute() {
+            if(failure.get() != null) { /* already aborted */
+                tryComplete();
+                return;
+            }
+
+            FTPFile[] files;
+            try {
+                files = listDirectory(dirPath);
+            } catch(IOException e) {
+                try {
+                    if(visitor == null)
+                        throw e;
+                    synchronized(visitor) {
+                        visitor.listFailed(depth-1, dirPath, dir, e);
+                    }
+                } catch(IOException visitorFailure) {
+                    failure.compareAndSet(null, visitorFailure);
+                    completeExceptionally(visitorFailure);
+                    return;
+                }
+                tryComplete(); /* skipped, the walk goes on */
+                return;
+            }
+
+            String parentPath = dirPath.endsWith("/") ? dirPath : dirPath + "/";
+            try {
+                for(FTPFile file: files) {
+                    String path = parentPath + file.getName();
+                    countVisited(file);
+                    if(visitor != null) {
+                        synchronized(visitor) {
+                            visitor.visit(depth, path, file);
+                        }
+                    }
+                    if(file.isDirectory() && (pruner == null || !pruner.isPruned(depth, path, file))) {
+                        addToPendingCount(1);
+                        new WalkTask(this, path, file, depth+1, pruner, visitor).fork();
+                    }
+                }
+            } catch(IOException e) { /* from the visitor */
+                failure.compareAndSet(null, e);
+                completeExceptionally(e);
+                return;
+            }
+            tryComplete();
+        }
+    }
+
+    /**
+     * Visits the entries of the tree in depth-first listing order.
+     * @param rootPath Absolute path of the root.
+     * @param maxDepth Directories at this depth are visited but not listed, negative for no limit.
+     */
+    void visit(final String rootPath, final FTPFile rootFile, final int maxDepth, final FTPTreeVisitor visitor) throws IOException {
+        countVisited(rootFile);
+        visitor.visit(0, rootPath, rootFile);
+        if(!rootFile.isDirectory())
+            return;
+        if(maxDepth == 0) {
+            visitor.leave(0, rootPath, rootFile);
+            return;
+        }
+
+        final int maxPrefetched = sessionPool.getMaxSize() * PREFETCHED_LISTINGS_PER_SESSION;
+        ExecutorService executor = Executors.newFixedThreadPool(sessionPool.getMaxSize(), runnable -> {
+            Thread thread = new Thread(runnable, "ftp-tree");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Deque<Frame> stack = new ArrayDeque<>();
+            stack.push(new Frame(rootPath, rootFile, 1, await(submitListing(executor, rootPath))));
+            int prefetchedCount = 0;
+            while(!stack.isEmpty()) {
+                Frame frame = stack.peek();
+                if(frame.index == frame.files.length) {
+                    stack.pop();
+                    visitor.leave(frame.depth-1, frame.dirPath, frame.dir);
+                    continue;
+                }
+
+                FTPFile file = frame.files[frame.index++];
+                String path = frame.parentPath + file.getName();
+                countVisited(file);
+                visitor.visit(frame.depth, path, file);
+                if(!file.isDirectory())
+                    continue;
+                if(frame.depth == maxDepth) { /* not listed */
+                    visitor.leave(frame.depth, path, file);
+                    continue;
+                }
+
+                Future<FTPFile[]> listing;
+                if(frame.prefetchIndex >= frame.index) { /* listed ahead, the oldest prefetched one of the frame */
+                    listing = frame.prefetched.pollFirst();
+                    prefetchedCount--;
+                } else {
+                    listing = submitListing(executor, path);
+                    frame.prefetchIndex = frame.index;
+                }
+                stack.push(new Frame(path, file, frame.depth+1, await(listing)));
+                prefetchedCount = prefetch(executor, stack, maxDepth, prefetchedCount, maxPrefetched);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+     * Submits the listing of the next directories in depth-first order among
+     * those known so far, i.e. the remaining ones of the deepest frames first.
+     * @return Number of listings prefetched and not consumed yet.
+     */
+    private int prefetch(final ExecutorService executor,
+                         final Deque<Frame> stack,
+                         final int maxDepth,
+                         int prefetchedCount,
+                         final int maxPrefetched) {
+        for(Frame frame: stack) { /* from the top */
+            if(frame.depth == maxDepth)
+                continue; /* its directories are not listed */
+            for(; frame.prefetchIndex < frame.files.length && prefetchedCount < maxPrefetched; frame.prefetchIndex++) {
+                FTPFile file = frame.files[frame.prefetchIndex];
+                if(frame.prefetchIndex < frame.index || !file.isDirectory())
+                    continue;
+                frame.prefetched.addLast(submitListing(executor, frame.parentPath + file.getName()));
+                prefetchedCount++;
+            }
+            if(prefetchedCount == maxPrefetched)
+                break;
+        }
+        return prefetchedCount;
+    }
+
+    private Future<FTPFile[]> submitListing(final ExecutorService executor, final String dirPath) {
+        return executor.submit(() -> listDirectory(dirPath));
+    }
+
+    private static FTPFile[] await(final Future<FTPFile[]> listing) throws IOException {
+        try {
+            return listing.get();
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException("Listing failed", e.getCause());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a listing", e);
+        }
+    }
+
+    private void countVisited(final FTPFile file) {
+        if(file.isDirectory())
+            dirCount.increment();
+        else
+            fileCount.increment();
+    }
+
+    private FTPFile[] listDirectory(final String dirPath) throws IOException {
+        return sessionPool.callWithSession(session -> lister.listFiles(session, dirPath));
+    }
+}
@@ -0,0 +1,113 @@
+package fs.ftp.handler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Count, errors and latency histogram of a single FTP verb, updated
+ * concurrently by all the sessions of a handler.
+ *
+ * <p>The histogram has a bucket per power of two microseconds, so recording is a
+ * couple of adds with no allocation or lock, and percentiles are read as the upper
+ * bound of their bucket, i.e. within a factor of two.</p>
+ */
+public final class FTPVerbMetrics implements FTPVerbMetricsMBean {
+    private static final int BUCKET_COUNT = 40; /* up to 2^39us, i.e. ~6 days */
+
+    private final String verb;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+    private final LongAdder totalLatency = new LongAdder(); /* in ns */
+    private final LongAccumulator maxLatency = new LongAccumulator(Math::max, 0L); /* in ns */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT); /* bucket i: < 2^i us */
+
+
+    FTPVerbMetrics(final String verb) {
+        this.verb = verb;
+    }
+
+    /**
+     * @param latency In ns, from the command sent to its final reply.
+     */
+    void record(final long latency, final boolean isError) {
+        count.increment();
+        if(isError)
+            errorCount.increment();
+        totalLatency.add(latency);
+        maxLatency.accumulate(latency);
+        long micros = TimeUnit.NANOSECONDS.toMicros(latency);
+        buckets.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT-1));
+    }
+
+    @Override
+    public String getVerb() {
+        return verb;
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    @Override
+    public double getTotalLatencyMillis() {
+        return totalLatency.sum() / 1_000_000.0;
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        long count = getCount();
+        return count == 0 ? 0.0 : getTotalLatencyMillis() / count;
+    }
+
+    @Override
+    public double getP50LatencyMillis() {
+        return getPercentileMillis(50);
+    }
+
+    @Override
+    public double getP99LatencyMillis() {
+        return getPercentileMillis(99);
+    }
+
+    @Override
+    public double getMaxLatencyMillis() {
+        return maxLatency.get() / 1_000_000.0;
+    }
+
+    @Override
+    public void reset() {
+        count.reset();
+        errorCount.reset();
+        totalLatency.reset();
+        maxLatency.reset();
+        for(int i=0; i<BUCKET_COUNT; i++)
+            buckets.set(i, 0L);
+    }
+
+    private double getPercentileMillis(final int percent) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0L;
+        for(int i=0; i<BUCKET_COUNT; i++)
+            total += counts[i] = buckets.get(i);
+        if(total == 0)
+            return 0.0;
+
+        long rank = (long)Math.ceil(percent / 100.0 * total);
+        long cumulative = 0L;
+        for(int i=0; i<BUCKET_COUNT; i++) {
+            cumulative += counts[i];
+            if(cumulative >= rank) /* no higher than the max seen */
+                return Math.min((1L << i) / 1_000.0, getMaxLatencyMillis());
+        }
+        return getMaxLatencyMillis();
+    }
+}
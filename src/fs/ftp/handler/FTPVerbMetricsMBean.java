@@ -0,0 +1,32 @@
+package fs.ftp.handler;
+
+
+/**
+ * JMX view of the commands of a single FTP verb sent by a handler over all
+ * its sessions, e.g. <code>fs.ftp.handler:type=FTPCommandMetrics,handler=1,verb=LIST</code>.
+ * Latencies are from the command sent to its final reply, so those of RETR
+ * and STOR include the data transfer.
+ */
+public interface FTPVerbMetricsMBean {
+    String getVerb();
+
+    long getCount();
+
+    /** Commands answered with a 4xx/5xx reply, or never answered */
+    long getErrorCount();
+
+    double getTotalLatencyMillis();
+
+    double getMeanLatencyMillis();
+
+    /** Upper bound of the histogram bucket of the median */
+    double getP50LatencyMillis();
+
+    /** Upper bound of the histogram bucket of the 99th percentile */
+    double getP99LatencyMillis();
+
+    double getMaxLatencyMillis();
+
+    /** Clears the counts and the histogram */
+    void reset();
+}
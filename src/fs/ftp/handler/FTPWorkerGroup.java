@@ -0,0 +1,155 @@
+package fs.ftp.handler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Group of worker threads draining a bounded work queue, each worker
+ * on its own session borrowed from the session pool.
+ *
+ * <p>The producer blocks on {@link #submit(Object)} while the queue is full,
+ * so a directory walk never runs far ahead of the transfers.
+ * A worker whose session breaks gets a fresh one from the pool; a worker which
+ * cannot get any session quits, and once no worker is left the remaining
+ * items are reported as failed instead of blocking the producer.</p>
+ */
+final class FTPWorkerGroup<T> {
+    interface Worker<T> {
+        /** Processes the item, throws if it failed. */
+        void process(FTPSessionClient session, T item) throws IOException;
+
+        /** Records the failure of the item. */
+        void failed(T item, Exception e);
+    }
+
+    private static final long POLL_INTERVAL = 200L; /* in ms */
+
+    private final FTPSessionPool sessionPool;
+    private final Worker<T> worker;
+    private final String workingDirectory;
+    private final BlockingQueue<T> queue;
+    private final List<Thread> threads;
+    private volatile boolean isSubmitDone = false;  /* default value set */
+    private int aliveWorkerCount;
+    private Exception lastSessionError = null;
+
+
+    /**
+     * @param workingDirectory Directory to move the sessions to, or null to leave them as is.
+     */
+    FTPWorkerGroup(final String name,
+                   final FTPSessionPool sessionPool,
+                   final int workerCount,
+                   final int queueCapacity,
+                   final String workingDirectory,
+                   final Worker<T> worker) {
+        if(workerCount < 1)
+            throw new IllegalArgumentException("Invalid worker count: " + workerCount);
+        this.sessionPool = sessionPool;
+        this.worker = worker;
+        this.workingDirectory = workingDirectory;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.threads = new ArrayList<>(workerCount);
+        this.aliveWorkerCount = workerCount;
+        for(int i=0; i<workerCount; i++) {
+            Thread thread = new Thread(this::runWorker, name + "-" + (i+1));
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        for(Thread thread: threads)
+            thread.start();
+    }
+
+    /** Queues the item, waiting while the queue is full. */
+    void submit(final T item) throws IOException {
+        try {
+            while(!queue.offer(item, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if(!hasAliveWorkers()) {
+                    worker.failed(item, getLastSessionError());
+                    return;
+                }
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing work", e);
+        }
+        if(!hasAliveWorkers()) /* queued after the last worker quit */
+            failRemaining();
+    }
+
+    /** Waits for all the queued items to be processed. */
+    void finish() throws IOException {
+        isSubmitDone = true;
+        try {
+            for(Thread thread: threads)
+                thread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for workers", e);
+        }
+        failRemaining();
+    }
+
+    private synchronized boolean hasAliveWorkers() {
+        return aliveWorkerCount > 0;
+    }
+
+    private synchronized Exception getLastSessionError() {
+        return lastSessionError;
+    }
+
+    private void failRemaining() {
+        T item;
+        while((item = queue.poll()) != null)
+            worker.failed(item, getLastSessionError());
+    }
+
+    private void runWorker() {
+        FTPSessionClient session = null;
+        try {
+            while(true) {
+                T item = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if(item == null) {
+                    if(isSubmitDone && queue.isEmpty())
+                        break;
+                    continue;
+                }
+
+                if(session == null) {
+                    try {
+                        session = sessionPool.borrowSession(workingDirectory);
+                    } catch(IOException e) {
+                        synchronized(this) {
+                            lastSessionError = e;
+                        }
+                        worker.failed(item, e);
+                        break;
+                    }
+                }
+
+                try {
+                    worker.process(session, item);
+                } catch(Exception e) {
+                    worker.failed(item, e);
+                    if(session.isBroken() || !session.isConnected()) {
+                        sessionPool.invalidateSession(session);
+                        session = null;
+                    }
+                }
+            }
+        } catch(InterruptedException e) { /* quit */
+            Thread.currentThread().interrupt();
+        } finally {
+            if(session != null)
+                sessionPool.returnSession(session);
+            synchronized(this) {
+                aliveWorkerCount--;
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package fs.ftp.handler;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.apache.commons.net.ftp.FTPFile;
+
+
+/**
+ * Predicates of find, all of which an entry has to match. Depth and prune
+ * patterns stop directories from being listed at all, the others only
+ * select among the entries listed.
+ */
+public class FindCriteria {
+    private Pattern namePattern     = null;           /* default value set */
+    private Pattern prunePattern    = null;           /* default value set */
+    private long minSize            = 0L;             /* default value set */
+    private long maxSize            = Long.MAX_VALUE; /* default value set */
+    private long minTime            = Long.MIN_VALUE; /* default value set */
+    private long maxTime            = Long.MAX_VALUE; /* default value set */
+    private int type                = -1;             /* default value set, any */
+    private int maxDepth            = -1;             /* default value set, no limit */
+
+
+    /**
+     * @param glob Shell pattern on the entry name: <code>*</code>, <code>?</code> and
+     * <code>[...]</code>, null for any name.
+     */
+    public void setNameGlob(final String glob) throws PatternSyntaxException {
+        this.namePattern = glob == null ? null : Pattern.compile(toRegex(glob));
+    }
+
+    /**
+     * @param regex Matching the whole entry name, null for any name.
+     */
+    public void setNameRegex(final String regex) throws PatternSyntaxException {
+        this.namePattern = regex == null ? null : Pattern.compile(regex);
+    }
+
+    /**
+     * @param glob Shell pattern on the name of directories not to descend into,
+     * which are still matched themselves; null to prune none.
+     */
+    public void setPruneGlob(final String glob) throws PatternSyntaxException {
+        this.prunePattern = glob == null ? null : Pattern.compile(toRegex(glob));
+    }
+
+    /**
+     * Bounds, in bytes and inclusive, the size of the files; directories and
+     * entries of unknown size do not match once set.
+     */
+    public void setSizeRange(final long minSize, final long maxSize) {
+        if(minSize < 0 || maxSize < minSize)
+            throw new IllegalArgumentException("Invalid size range: " + minSize + " - " + maxSize);
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Bounds the modification time, in ms since the epoch: at or after the
+     * minimum and before the maximum. Entries of unknown time do not match once set.
+     */
+    public void setTimeRange(final long minTime, final long maxTime) {
+        if(maxTime <= minTime)
+            throw new IllegalArgumentException("Invalid time range: " + minTime + " - " + maxTime);
+        this.minTime = minTime;
+        this.maxTime = maxTime;
+    }
+
+    /**
+     * @param type One of the <code>FTPFile</code> types, -1 for any.
+     */
+    public void setType(final int type) {
+        if(type != -1 && type != FTPFile.FILE_TYPE && type != FTPFile.DIRECTORY_TYPE && type != FTPFile.SYMBOLIC_LINK_TYPE)
+            throw new IllegalArgumentException("Invalid type: " + type);
+        this.type = type;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @param maxDepth Directories at this depth are matched but not listed, negative for no limit.
+     */
+    public void setMaxDepth(final int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    boolean matches(final FTPFile file) {
+        if(type != -1 && file.getType() != type)
+            return false;
+        if(namePattern != null && !namePattern.matcher(file.getName()).matches())
+            return false;
+        if(minSize != 0L || maxSize != Long.MAX_VALUE) {
+            if(file.isDirectory() || file.getSize() < 0 || file.getSize() < minSize || file.getSize() > maxSize)
+                return false;
+        }
+        if(minTime != Long.MIN_VALUE || maxTime != Long.MAX_VALUE) {
+            if(file.getTimestamp() == null)
+                return false;
+            long time = file.getTimestamp().getTimeInMillis();
+            if(time < minTime || time >= maxTime)
+                return false;
+        }
+        return true;
+    }
+
+    /** @return Whether the directory is not to be descended into, the root is never pruned by name. */
+    boolean isPruned(final int depth, final FTPFile dir) {
+        return (maxDepth >= 0 && depth >= maxDepth)
+                || (prunePattern != null && depth > 0 && prunePattern.matcher(dir.getName()).matches());
+    }
+
+    /* Shell pattern to regex, anything else taken literally */
+    private static String toRegex(final String glob) {
+        StringBuilder regex = new StringBuilder();
+        for(int i=0, len=glob.length(); i<len; i++) {
+            char c = glob.charAt(i);
+            switch(c) {
+                case '*':
+                    regex.append(".*");
+                    break;
+
+                case '?':
+                    regex.append('.');
+                    break;
+
+                case '[': {
+                        int end = glob.indexOf(']', i+2); /* a leading ']' is part of the set */
+                        if(end == -1) {
+                            regex.append("\\[");
+                            break;
+                        }
+                        String set = glob.substring(i+1, end);
+                        if(set.startsWith("!"))
+                            set = "^" + set.substring(1);
+                        regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[").replace("]", "\\]")).append(']');
+                        i = end;
+                    }
+                    break;
+
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                    break;
+            }
+        }
+        return regex.toString();
+    }
+}
@@ -0,0 +1,106 @@
+package fs.ftp.handler;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+import org.apache.commons.net.ftp.FTPFile;
+
+
+/**
+ * Lean parser of the machine-readable entries of MLSD/MLST (RFC 3659).
+ *
+ * <p>An entry is a list of <code>fact=value;</code> pairs followed by a space and
+ * the name. The facts are scanned in place, without regular expressions or date
+ * formatters, so sizes are exact and timestamps are in UTC.</p>
+ */
+final class MLSDEntryParser {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private MLSDEntryParser() {
+    }
+
+    /**
+     * @return Parsed entry, null if malformed or for the current and parent directory entries.
+     */
+    static FTPFile parseEntry(final String entry) {
+        int nameIdx = entry.indexOf(' ');
+        if(nameIdx == -1 || nameIdx == entry.length()-1)
+            return null;
+
+        FTPFile file = new FTPFile();
+        file.setRawListing(entry);
+        file.setName(entry.substring(nameIdx+1));
+        file.setType(FTPFile.UNKNOWN_TYPE);
+
+        for(int factIdx=0; factIdx < nameIdx; ) {
+            int endIdx = entry.indexOf(';', factIdx);
+            if(endIdx == -1 || endIdx > nameIdx)
+                endIdx = nameIdx;
+            int equalIdx = entry.indexOf('=', factIdx);
+            if(equalIdx != -1 && equalIdx < endIdx) {
+                String value = entry.substring(equalIdx+1, endIdx);
+                if(!parseFact(file, entry.substring(factIdx, equalIdx), value))
+                    return null;
+            }
+            factIdx = endIdx+1;
+        }
+        return file;
+    }
+
+    /* @return false if the entry has to be skipped */
+    private static boolean parseFact(final FTPFile file, final String fact, final String value) {
+        if(fact.equalsIgnoreCase("type")) {
+            if(value.equalsIgnoreCase("file"))
+                file.setType(FTPFile.FILE_TYPE);
+            else if(value.equalsIgnoreCase("dir"))
+                file.setType(FTPFile.DIRECTORY_TYPE);
+            else if(value.equalsIgnoreCase("cdir") || value.equalsIgnoreCase("pdir"))
+                return false;
+            else if(value.regionMatches(true, 0, "OS.unix=slink", 0, 13) || value.regionMatches(true, 0, "OS.unix=symlink", 0, 15))
+                file.setType(FTPFile.SYMBOLIC_LINK_TYPE);
+        } else if(fact.equalsIgnoreCase("size") || fact.equalsIgnoreCase("sizd")) {
+            try {
+                file.setSize(Long.parseLong(value));
+            } catch(NumberFormatException e) { /* leave unknown */
+            }
+        } else if(fact.equalsIgnoreCase("modify")) {
+            file.setTimestamp(parseTimestamp(value));
+        } else if(fact.equalsIgnoreCase("UNIX.owner") || fact.equalsIgnoreCase("UNIX.uid")) {
+            file.setUser(value);
+        } else if(fact.equalsIgnoreCase("UNIX.group") || fact.equalsIgnoreCase("UNIX.gid")) {
+            file.setGroup(value);
+        }
+        return true;
+    }
+
+    /**
+     * Parses <code>YYYYMMDDHHMMSS[.sss]</code>, always in UTC.
+     * @return Null if malformed.
+     */
+    static Calendar parseTimestamp(final String value) {
+        if(value.length() < 14)
+            return null;
+        for(int i=0; i<14; i++)
+            if(!Character.isDigit(value.charAt(i)))
+                return null;
+
+        Calendar calendar = new GregorianCalendar(UTC);
+        calendar.clear();
+        calendar.set(digits(value, 0, 4), digits(value, 4, 6)-1, digits(value, 6, 8),
+                     digits(value, 8, 10), digits(value, 10, 12), digits(value, 12, 14));
+        if(value.length() > 15 && value.charAt(14) == '.') {
+            int millis = 0, scale = 100;
+            for(int i=15; i<value.length() && scale > 0 && Character.isDigit(value.charAt(i)); i++, scale /= 10)
+                millis += (value.charAt(i) - '0') * scale;
+            calendar.set(Calendar.MILLISECOND, millis);
+        }
+        return calendar;
+    }
+
+    private static int digits(final String value, final int beginIdx, final int endIdx) {
+        int number = 0;
+        for(int i=beginIdx; i<endIdx; i++)
+            number = number*10 + (value.charAt(i) - '0');
+        return number;
+    }
+}
@@ -0,0 +1,297 @@
+package fs.ftp.handler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Outcome of a recursive get, put, cp, mv or rm, recorded by all its workers.
+ *
+ * <p>Only counters and the first {@link #MAX_FAILURES} failures, with their
+ * reasons, are kept in memory, whatever the size of the tree. Every entry can
+ * also be streamed to an entry log on disk, to be read back once the operation
+ * is over, e.g. for a verbose listing.</p>
+ */
+public final class OperationResult implements AutoCloseable {
+    public static final int MAX_FAILURES = 100;
+
+    /* Entry log line: status, type and path, tab separated, then the reason of a failure;
+       backslashes, tabs and line breaks in path and reason are escaped */
+    private static final String SUCCEEDED = "ok";
+    private static final String FAILED = "failed";
+    private static final String MISMATCHED = "mismatched";
+    private static final String DIRECTORY = "d";
+    private static final String FILE = "f";
+
+    private final LongAdder succeededDirCount = new LongAdder();
+    private final LongAdder succeededFileCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder mismatchedCount = new LongAdder();
+    private final List<Failure> failures = new ArrayList<>(); /* first ones only, guarded by itself */
+    private final File entryLogFile;
+    private Writer entryLog = null; /* default value set, guarded by this */
+    private IOException entryLogFailure = null; /* default value set, guarded by this */
+
+
+    /** A failed entry and why it failed */
+    public static final class Failure {
+        private final String path;
+        private final boolean isDirectory;
+        private final String reason;
+        private final boolean isMismatch;
+
+        private Failure(final String path, final boolean isDirectory, final String reason, final boolean isMismatch) {
+            this.path = path;
+            this.isDirectory = isDirectory;
+            this.reason = reason;
+            this.isMismatch = isMismatch;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isDirectory() {
+            return isDirectory;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        /** @return Whether the file was transferred but does not match the checksum of the server. */
+        public boolean isMismatch() {
+            return isMismatch;
+        }
+    }
+
+    /** Reads back the entry log */
+    public interface EntryVisitor {
+        /**
+         * @param reason Null for a succeeded entry.
+         */
+        void visit(String path, boolean isDirectory, String reason);
+    }
+
+
+    /** Counts the entries without logging them. */
+    public OperationResult() {
+        this.entryLogFile = null;
+    }
+
+    /**
+     * Also streams every entry to the log file, which is overwritten.
+     */
+    public OperationResult(final File entryLogFile) throws IOException {
+        this.entryLogFile = entryLogFile;
+        this.entryLog = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(entryLogFile), StandardCharsets.UTF_8));
+    }
+
+    void succeeded(final String path, final boolean isDirectory) {
+        (isDirectory ? succeededDirCount : succeededFileCount).increment();
+        log(SUCCEEDED, path, isDirectory, null);
+    }
+
+    void failed(final String path, final boolean isDirectory, final String reason) {
+        failedCount.increment();
+        keepFailure(new Failure(path, isDirectory, reason, false));
+        log(FAILED, path, isDirectory, reason);
+    }
+
+    void failed(final String path, final boolean isDirectory, final Exception e) {
+        failed(path, isDirectory, getReason(e));
+    }
+
+    /** A file transferred whole whose content differs from the one of the server. */
+    void mismatched(final String path, final String reason) {
+        mismatchedCount.increment();
+        keepFailure(new Failure(path, false, reason, true));
+        log(MISMATCHED, path, false, reason);
+    }
+
+    private void keepFailure(final Failure failure) {
+        synchronized(failures) {
+            if(failures.size() < MAX_FAILURES)
+                failures.add(failure);
+        }
+    }
+
+    static String getReason(final Exception e) {
+        if(e == null)
+            return "Unknown failure";
+        return e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+    }
+
+    private synchronized void log(final String status, final String path, final boolean isDirectory, final String reason) {
+        if(entryLog == null)
+            return;
+        try {
+            entryLog.append(status).append('\t').append(isDirectory ? DIRECTORY : FILE).append('\t').append(escape(path));
+            if(reason != null)
+                entryLog.append('\t').append(escape(reason));
+            entryLog.append('\n');
+        } catch(IOException e) { /* the counts are still right, reported when read back */
+            entryLogFailure = e;
+            closeEntryLog();
+        }
+    }
+
+    public long getSucceededCount() {
+        return succeededDirCount.sum() + succeededFileCount.sum();
+    }
+
+    public long getSucceededDirCount() {
+        return succeededDirCount.sum();
+    }
+
+    public long getSucceededFileCount() {
+        return succeededFileCount.sum();
+    }
+
+    /** @return Entries that failed, not counting the checksum mismatches. */
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    /** @return Files transferred whose checksum did not match, deleted at the destination. */
+    public long getMismatchedCount() {
+        return mismatchedCount.sum();
+    }
+
+    /**
+     * @return The first failures and mismatches, at most {@link #MAX_FAILURES}.
+     */
+    public List<Failure> getFailures() {
+        synchronized(failures) {
+            return Collections.unmodifiableList(new ArrayList<>(failures));
+        }
+    }
+
+    /** @return Failures and mismatches counted but not kept. */
+    public long getOmittedFailureCount() {
+        return getFailedCount() + getMismatchedCount() - getFailures().size();
+    }
+
+    public boolean hasEntryLog() {
+        return entryLogFile != null;
+    }
+
+    /**
+     * Visits the logged entries in the order they were recorded, the log has to
+     * be closed first.
+     * @param isFailedOnly If set, only the failed entries are visited.
+     */
+    public void forEachLoggedEntry(final boolean isFailedOnly, final EntryVisitor visitor) throws IOException {
+        synchronized(this) {
+            if(entryLogFile == null)
+                throw new IllegalStateException("No entry log");
+            if(entryLogFailure != null)
+                throw new IOException("Entry log incomplete: " + entryLogFile.getPath(), entryLogFailure);
+            closeEntryLog();
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(entryLogFile), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if(fields.length < 3)
+                    continue; /* cut short */
+                boolean isFailed = !fields[0].equals(SUCCEEDED); /* mismatched too */
+                if(isFailedOnly && !isFailed)
+                    continue;
+                visitor.visit(unescape(fields[2]), fields[1].equals(DIRECTORY), isFailed ? (fields.length == 4 ? unescape(fields[3]) : "") : null);
+            }
+        }
+    }
+
+    /* Keeps a field of the entry log on its line and apart from the others */
+    private static String escape(final String field) {
+        StringBuilder escaped = new StringBuilder(field.length());
+        for(int i=0, len=field.length(); i<len; i++) {
+            char c = field.charAt(i);
+            switch(c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+
+                default:
+                    escaped.append(c);
+                    break;
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String unescape(final String field) {
+        if(field.indexOf('\\') == -1)
+            return field;
+        StringBuilder unescaped = new StringBuilder(field.length());
+        for(int i=0, len=field.length(); i<len; i++) {
+            char c = field.charAt(i);
+            if(c == '\\' && i+1 < len) {
+                switch(field.charAt(++i)) {
+                    case 't':
+                        c = '\t';
+                        break;
+
+                    case 'n':
+                        c = '\n';
+                        break;
+
+                    case 'r':
+                        c = '\r';
+                        break;
+
+                    default: /* the backslash itself */
+                        c = field.charAt(i);
+                        break;
+                }
+            }
+            unescaped.append(c);
+        }
+        return unescaped.toString();
+    }
+
+    /** Closes the entry log and deletes its file. */
+    @Override
+    public synchronized void close() {
+        closeEntryLog();
+        if(entryLogFile != null)
+            entryLogFile.delete();
+    }
+
+    private void closeEntryLog() {
+        if(entryLog == null)
+            return;
+        try {
+            entryLog.close();
+        } catch(IOException e) {
+            if(entryLogFailure == null)
+                entryLogFailure = e;
+        }
+        entryLog = null;
+    }
+}
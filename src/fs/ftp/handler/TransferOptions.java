@@ -0,0 +1,104 @@
+package fs.ftp.handler;
+
+
+/**
+ * Options for the file transfers of get, put and sync, and the progress of cp.
+ */
+public class TransferOptions {
+    private int parallelism             = 1;      /* default value set */
+    private boolean isResumeEnabled     = false;  /* default value set */
+    private int segments                = 1;      /* default value set */
+    private boolean isDeleteEnabled     = false;  /* default value set */
+    private boolean isChecksumEnabled   = false;  /* default value set */
+    private boolean isVerifyEnabled     = false;  /* default value set */
+    private final TransferProgress progress = new TransferProgress();
+
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism Number of files to transfer concurrently, each over its own pooled session.
+     */
+    public void setParallelism(final int parallelism) {
+        if(parallelism < 1)
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    public boolean isResumeEnabled() {
+        return isResumeEnabled;
+    }
+
+    /**
+     * @param isResumeEnabled If set, partially transferred files are continued from
+     * where they stopped and complete ones are skipped, instead of being transferred again.
+     */
+    public void setResumeEnabled(final boolean isResumeEnabled) {
+        this.isResumeEnabled = isResumeEnabled;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    /**
+     * @param segments Number of ranges a large file is downloaded in at once, 
+     * each over its own pooled session. Applies to get only, smaller files are 
+     * split in fewer ranges or not at all.
+     */
+    public void setSegments(final int segments) {
+        if(segments < 1)
+            throw new IllegalArgumentException("Invalid segments: " + segments);
+        this.segments = segments;
+    }
+
+    public boolean isDeleteEnabled() {
+        return isDeleteEnabled;
+    }
+
+    /**
+     * @param isDeleteEnabled If set, entries of the destination tree which are not
+     * in the source tree are deleted, also to replace an entry of the other type. 
+     * Applies to sync only.
+     */
+    public void setDeleteEnabled(final boolean isDeleteEnabled) {
+        this.isDeleteEnabled = isDeleteEnabled;
+    }
+
+    public boolean isChecksumEnabled() {
+        return isChecksumEnabled;
+    }
+
+    /**
+     * @param isChecksumEnabled If set, files of the same size are compared by the 
+     * checksum of the server instead of by modification time, reading every 
+     * such local file. Applies to sync only.
+     */
+    public void setChecksumEnabled(final boolean isChecksumEnabled) {
+        this.isChecksumEnabled = isChecksumEnabled;
+    }
+
+    public boolean isVerifyEnabled() {
+        return isVerifyEnabled;
+    }
+
+    /**
+     * @param isVerifyEnabled If set, every file transferred is checked against the
+     * checksum of the server, the local digest being taken from the data as it
+     * goes through; a resumed file has its local part read first. A file that does
+     * not match is deleted at the destination, to be transferred whole again.
+     * Applies to get, put and sync, not to files downloaded in segments.
+     */
+    public void setVerifyEnabled(final boolean isVerifyEnabled) {
+        this.isVerifyEnabled = isVerifyEnabled;
+    }
+
+    /**
+     * @return Fed by the transfer, for the caller to report while it runs.
+     */
+    public TransferProgress getProgress() {
+        return progress;
+    }
+}
@@ -0,0 +1,316 @@
+package fs.ftp.handler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.commons.net.io.CopyStreamEvent;
+import org.apache.commons.net.io.CopyStreamListener;
+
+
+/**
+ * Progress of a single get, put, cp or sync, shared by all its transfer workers.
+ *
+ * <p>The copy loops only add to counters on every buffer; nothing is printed
+ * or computed there. Whoever reports the progress calls
+ * {@link #getStatusLine()} at its own pace, each call taking a sample from
+ * which the throughput over the last seconds and minute is derived.</p>
+ *
+ * <p>Totals grow as the source trees are walked, so while the walk is still
+ * going the percentage and ETA are relative to what has been found so far
+ * and the total is shown with a trailing <code>+</code>.</p>
+ *
+ * <p>The times per file go to histograms with a bucket per power of two
+ * microseconds, as {@link FTPVerbMetrics} does, so the memory taken stays the
+ * same whatever the number of files.</p>
+ */
+public final class TransferProgress {
+    private static final int SAMPLE_COUNT = 64; /* over a minute at one sample a second */
+    private static final long SHORT_WINDOW = TimeUnit.SECONDS.toNanos(5);
+    private static final long LONG_WINDOW = TimeUnit.SECONDS.toNanos(60);
+    private static final int MAX_CURRENT_FILES_SHOWN = 3;
+    private static final int BUCKET_COUNT = 40; /* up to 2^39us, i.e. ~6 days */
+
+    private final long startTime = System.nanoTime();
+    private final LongAdder walkedFiles = new LongAdder();
+    private final LongAdder walkedBytes = new LongAdder();
+    private final LongAdder transferredBytes = new LongAdder();
+    private final LongAdder wireBytes = new LongAdder(); /* on the data connections, deflated under MODE Z */
+    private final LongAdder skippedFiles = new LongAdder();
+    private final LongAdder skippedBytes = new LongAdder(); /* already at the destination */
+    private final LongAdder completedFiles = new LongAdder();
+    private final LongAdder failedFiles = new LongAdder();
+    private final LongAdder deletedEntries = new LongAdder(); /* by sync, not in the source tree */
+    private final LongAdder verifiedFiles = new LongAdder();  /* matching the checksum of the server */
+    private final Set<FileTransfer> currentFiles = ConcurrentHashMap.newKeySet();
+    private volatile boolean isWalkDone = false; /* default value set */
+
+    /* Histograms of the per-file times of the succeeded transfers, bucket i: < 2^i us */
+    private final AtomicLongArray fileTimeBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLongArray firstByteTimeBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAccumulator maxFileTime = new LongAccumulator(Math::max, 0L);      /* in ns */
+    private final LongAccumulator maxFirstByteTime = new LongAccumulator(Math::max, 0L); /* in ns */
+
+    /* Ring of (time, transferred bytes) samples, guarded by this */
+    private final long[] sampleTimes = new long[SAMPLE_COUNT];
+    private final long[] sampleBytes = new long[SAMPLE_COUNT];
+    private int sampleCount = 0;
+
+
+    /** A single file being transferred, fed by the copy loop. */
+    final class FileTransfer implements CopyStreamListener {
+        private final String path;
+        private final long size;
+        private final long startTime = System.nanoTime();
+        private volatile long firstByteTime = 0L;  /* default value set */
+        private final LongAdder bytes = new LongAdder(); /* from the restart offset, fed by all the segments */
+        private volatile boolean isDeflated = false;     /* default value set, wire bytes are then told apart */
+
+        private FileTransfer(final String path, final long size, final long offset) {
+            this.path = path;
+            this.size = size;
+            this.bytes.add(offset);
+        }
+
+        @Override
+        public void bytesTransferred(final CopyStreamEvent event) {
+            bytesTransferred(event.getTotalBytesTransferred(), event.getBytesTransferred(), event.getStreamSize());
+        }
+
+        @Override
+        public void bytesTransferred(final long totalBytesTransferred, final int bytesTransferred, final long streamSize) {
+            if(firstByteTime == 0L)
+                firstByteTime = System.nanoTime();
+            bytes.add(bytesTransferred);
+            transferredBytes.add(bytesTransferred);
+            if(!isDeflated)
+                wireBytes.add(bytesTransferred);
+        }
+
+        /** The file data goes deflated, its bytes on the wire are told by {@link #wireBytesTransferred(int)}. */
+        void deflated() {
+            isDeflated = true;
+        }
+
+        void wireBytesTransferred(final int bytes) {
+            wireBytes.add(bytes);
+        }
+
+        /** Ends the transfer, its time is recorded only if it succeeded. */
+        void finish(final boolean isSucceeded) {
+            currentFiles.remove(this);
+            if(isSucceeded) {
+                completedFiles.increment();
+                long now = System.nanoTime();
+                recordFileTime(now - startTime, (firstByteTime == 0L ? now : firstByteTime) - startTime);
+            } else {
+                failedFiles.increment();
+            }
+        }
+    }
+
+
+    /** Adds a file found by the walk to the totals. */
+    void walked(final long size) {
+        walkedFiles.increment();
+        if(size > 0)
+            walkedBytes.add(size);
+    }
+
+    /** All the source files have been found, the totals are final. */
+    void walkDone() {
+        isWalkDone = true;
+    }
+
+    /**
+     * @param offset Bytes already at the destination the transfer continues from.
+     */
+    FileTransfer start(final String path, final long size, final long offset) {
+        if(offset > 0)
+            skippedBytes.add(offset);
+        FileTransfer transfer = new FileTransfer(path, size, offset);
+        currentFiles.add(transfer);
+        return transfer;
+    }
+
+    /** A file already complete at the destination. */
+    void skipped(final long size) {
+        skippedFiles.increment();
+        if(size > 0)
+            skippedBytes.add(size);
+    }
+
+    /** An entry deleted from the destination, as not in the source. */
+    void deleted() {
+        deletedEntries.increment();
+    }
+
+    /** A file transferred and found the same as on the server by checksum. */
+    void verified() {
+        verifiedFiles.increment();
+    }
+
+    /* In ns */
+    private void recordFileTime(final long fileTime, final long firstByteTime) {
+        fileTimeBuckets.incrementAndGet(getBucket(fileTime));
+        firstByteTimeBuckets.incrementAndGet(getBucket(firstByteTime));
+        maxFileTime.accumulate(fileTime);
+        maxFirstByteTime.accumulate(firstByteTime);
+    }
+
+    private static int getBucket(final long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT-1);
+    }
+
+    /**
+     * Takes a sample and describes the progress, e.g.
+     * <code>[ 42% 120.5 MiB/286.0 MiB+, files 35/80+, 12.3 MiB/s 5s, 10.1 MiB/s 1m, ETA 0:00:13] a.bin 40%</code>
+     */
+    public String getStatusLine() {
+        long now = System.nanoTime();
+        long bytes = transferredBytes.sum();
+        long shortRate, longRate;
+        synchronized(this) {
+            int idx = sampleCount++ % SAMPLE_COUNT;
+            sampleTimes[idx] = now;
+            sampleBytes[idx] = bytes;
+            shortRate = getRate(now, bytes, SHORT_WINDOW);
+            longRate = getRate(now, bytes, LONG_WINDOW);
+        }
+
+        boolean isTotalFinal = isWalkDone;
+        long totalBytes = walkedBytes.sum();
+        long doneBytes = Math.min(bytes + skippedBytes.sum(), totalBytes);
+        long doneFiles = completedFiles.sum() + skippedFiles.sum() + failedFiles.sum();
+        long totalFiles = walkedFiles.sum();
+        long rate = shortRate > 0 ? shortRate : longRate;
+        int percent = totalBytes > 0 ? (int)(doneBytes * 100 / totalBytes) :      /* by files if all empty */
+                      totalFiles > 0 ? (int)(doneFiles * 100 / totalFiles) : 0;
+
+        StringBuilder line = new StringBuilder(128);
+        line.append(String.format("[%3d%% ", percent))
+            .append(formatBytes(doneBytes)).append('/').append(formatBytes(totalBytes)).append(isTotalFinal ? "" : "+")
+            .append(", files ").append(doneFiles).append('/').append(totalFiles).append(isTotalFinal ? "" : "+")
+            .append(", ").append(formatBytes(shortRate)).append("/s 5s")
+            .append(", ").append(formatBytes(longRate)).append("/s 1m")
+            .append(", ETA ").append(rate == 0 ? "--:--:--" : (isTotalFinal ? "" : ">") + formatDuration((long)((totalBytes - doneBytes) * 1e9 / rate)))
+            .append(']');
+
+        int shown = 0;
+        for(Iterator<FileTransfer> it = currentFiles.iterator(); it.hasNext(); ) {
+            FileTransfer transfer = it.next();
+            if(shown++ == MAX_CURRENT_FILES_SHOWN) {
+                line.append(", +").append(currentFiles.size() - MAX_CURRENT_FILES_SHOWN).append(" more");
+                break;
+            }
+            line.append(shown == 1 ? " " : ", ").append(getName(transfer.path));
+            if(transfer.size > 0)
+                line.append(' ').append(Math.min(transfer.bytes.sum() * 100 / transfer.size, 100)).append('%');
+        }
+        return line.toString();
+    }
+
+    /*
+     * Bytes/s since the oldest sample within the window, else since the latest
+     * one before it, or since the start while there is none. Guarded by this.
+     */
+    private long getRate(final long now, final long bytes, final long window) {
+        long fromTime = startTime, fromBytes = 0L;
+        for(int i=Math.max(sampleCount - SAMPLE_COUNT, 0); i<sampleCount-1; i++) { /* oldest first, but the current one */
+            int idx = i % SAMPLE_COUNT;
+            fromTime = sampleTimes[idx];
+            fromBytes = sampleBytes[idx];
+            if(now - fromTime <= window)
+                break;
+        }
+        return now == fromTime ? 0L : (long)((bytes - fromBytes) * 1e9 / (now - fromTime));
+    }
+
+    /**
+     * Totals of the whole transfer, with the median and 99th percentile of the
+     * time per file and to its first byte, within a factor of two: a first byte taking most of the time
+     * of a file means a latency bound transfer, rather than a bandwidth bound one.
+     * If any file went deflated (MODE Z), also the bytes on the wire and the 
+     * throughput there, against the throughput of the data.
+     */
+    public List<String> getSummary() {
+        long elapsed = System.nanoTime() - startTime;
+        long bytes = transferredBytes.sum();
+        List<String> summary = new ArrayList<>(3);
+        summary.add(String.format("Transferred: %d file(s), %s in %s (%s/s)",
+                completedFiles.sum(), formatBytes(bytes), formatDuration(elapsed),
+                formatBytes(elapsed == 0 ? 0L : (long)(bytes * 1e9 / elapsed))));
+        summary.add(String.format("Skipped: %d file(s), %s already present; failed: %d file(s)",
+                skippedFiles.sum(), formatBytes(skippedBytes.sum()), failedFiles.sum()));
+        if(deletedEntries.sum() > 0)
+            summary.add(String.format("Deleted: %d file(s)/directory(s) not in the source", deletedEntries.sum()));
+        if(verifiedFiles.sum() > 0)
+            summary.add(String.format("Verified: %d file(s) against the server checksum", verifiedFiles.sum()));
+        long wireBytes = this.wireBytes.sum();
+        if(wireBytes != bytes)
+            summary.add(String.format("On the wire: %s (%.1f%% of the data), %s/s against %s/s of data",
+                    formatBytes(wireBytes), bytes == 0 ? 0.0 : wireBytes * 100.0 / bytes,
+                    formatBytes(elapsed == 0 ? 0L : (long)(wireBytes * 1e9 / elapsed)),
+                    formatBytes(elapsed == 0 ? 0L : (long)(bytes * 1e9 / elapsed))));
+        long[] fileTimeCounts = getCounts(fileTimeBuckets);
+        long[] firstByteTimeCounts = getCounts(firstByteTimeBuckets);
+        long maxFileTime = this.maxFileTime.get();
+        long maxFirstByteTime = this.maxFirstByteTime.get();
+        if(fileTimeCounts[BUCKET_COUNT] > 0)
+            summary.add(String.format("Time per file: p50=%s, p99=%s, max=%s; to first byte: p50=%s, p99=%s",
+                    formatMillis(percentile(fileTimeCounts, 50, maxFileTime)), formatMillis(percentile(fileTimeCounts, 99, maxFileTime)), 
+                    formatMillis(maxFileTime),
+                    formatMillis(percentile(firstByteTimeCounts, 50, maxFirstByteTime)), 
+                    formatMillis(percentile(firstByteTimeCounts, 99, maxFirstByteTime))));
+        return summary;
+    }
+
+    /* Counts of the buckets, followed by their total */
+    private static long[] getCounts(final AtomicLongArray buckets) {
+        long[] counts = new long[BUCKET_COUNT+1];
+        for(int i=0; i<BUCKET_COUNT; i++)
+            counts[BUCKET_COUNT] += counts[i] = buckets.get(i);
+        return counts;
+    }
+
+    /* Upper bound in ns of the bucket of the nearest rank, no higher than the max seen */
+    private static long percentile(final long[] counts, final int percent, final long max) {
+        long rank = Math.max((long)Math.ceil(percent / 100.0 * counts[BUCKET_COUNT]), 1L);
+        long cumulative = 0L;
+        for(int i=0; i<BUCKET_COUNT; i++) {
+            cumulative += counts[i];
+            if(cumulative >= rank)
+                return Math.min(TimeUnit.MICROSECONDS.toNanos(1L << i), max);
+        }
+        return max;
+    }
+
+    private static String getName(final String path) {
+        int idx = path.lastIndexOf('/', path.length()-2);
+        return idx == -1 ? path : path.substring(idx+1);
+    }
+
+    static String formatBytes(final long bytes) {
+        if(bytes < 1024)
+            return bytes + " B";
+        int exp = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+        return String.format("%.1f %siB", bytes / (double)(1L << (exp * 10)), "KMGTPE".charAt(exp-1));
+    }
+
+    private static String formatDuration(final long nanos) {
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(nanos);
+        return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    private static String formatMillis(final long nanos) {
+        return nanos < 1_000_000_000L ?
+                String.format("%.1f ms", nanos / 1_000_000.0) :
+                String.format("%.1f s", nanos / 1_000_000_000.0);
+    }
+}